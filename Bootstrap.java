@@ -0,0 +1,179 @@
+/*
+ * Bootstrap of the box-counting dimension over box sizes and translations.
+ *
+ * A resample draws the box sizes with replacement, and for each drawn size
+ * draws its translations with replacement and takes the smallest of their
+ * counts, as the estimate itself does. The slope of log(count) against
+ * -log(size) is refitted for every resample. Resamples are done in fixed
+ * chunks, each with its own generator split from the seed, so the result
+ * does not depend on the number of threads. Within a chunk nothing is
+ * allocated: the logs are taken once and the fit works on reused arrays.
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class Bootstrap {
+
+    static final long DEFAULT_SEED = 0x5eed;
+
+    private static final int CHUNK = 256;
+
+    // Draws of a resample that has all its sizes equal are repeated, at
+    // most this many times
+    private static final int MAX_REDRAWS = 100;
+
+    private final double[] slopes;
+
+    private Bootstrap(double[] slopes) {
+        this.slopes = slopes;
+    }
+
+    /**
+     * Resamples the counts, given per box size as the counts of each of its
+     * translations. Returns null if fewer than two sizes have a positive
+     * count.
+     */
+    static Bootstrap resample(int[] sizes, long[][] countsBySize, int numResamples, long seed, int numThreads)
+            throws InterruptedException, ExecutionException {
+        // Sizes without foreground have no log count and are left out,
+        // as they are in the fit
+        int n = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (min(countsBySize[i]) > 0) {
+                n++;
+            }
+        }
+        if (n < 2) {
+            return null;
+        }
+        final double[] logSizes = new double[n];
+        final double[][] logCounts = new double[n][];
+        int k = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (min(countsBySize[i]) > 0) {
+                logSizes[k] = -Math.log(sizes[i]);
+                logCounts[k] = new double[countsBySize[i].length];
+                for (int j = 0; j < countsBySize[i].length; j++) {
+                    logCounts[k][j] = Math.log(countsBySize[i][j]);
+                }
+                k++;
+            }
+        }
+
+        final double[] slopes = new double[numResamples];
+        final SplitMix64 root = new SplitMix64(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            List<Future<Object>> chunks = new ArrayList<Future<Object>>();
+            for (int first = 0; first < numResamples; first += CHUNK) {
+                final int chunkFirst = first;
+                final int chunkEnd = Math.min(numResamples, first + CHUNK);
+                final SplitMix64 random = root.split();
+                chunks.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        resampleChunk(logSizes, logCounts, random, slopes, chunkFirst, chunkEnd);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> chunk : chunks) {
+                chunk.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Arrays.sort(slopes);
+        return new Bootstrap(slopes);
+    }
+
+    private static void resampleChunk(double[] logSizes, double[][] logCounts, SplitMix64 random,
+            double[] slopes, int first, int end) {
+        final int n = logSizes.length;
+        final double[] x = new double[n];
+        final double[] y = new double[n];
+        for (int r = first; r < end; r++) {
+            double slope = Double.NaN;
+            for (int attempt = 0; attempt < MAX_REDRAWS && Double.isNaN(slope); attempt++) {
+                for (int i = 0; i < n; i++) {
+                    final int size = random.nextInt(n);
+                    final double[] counts = logCounts[size];
+                    double best = counts[random.nextInt(counts.length)];
+                    for (int j = 1; j < counts.length; j++) {
+                        final double count = counts[random.nextInt(counts.length)];
+                        if (count < best) {
+                            best = count;
+                        }
+                    }
+                    x[i] = logSizes[size];
+                    y[i] = best;
+                }
+                slope = LineFit.slope(x, y, n);
+            }
+            slopes[r] = slope;
+        }
+    }
+
+    private static long min(long[] values) {
+        long min = Long.MAX_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    int getNumResamples() {
+        return slopes.length;
+    }
+
+    /**
+     * Standard deviation of the resampled slopes.
+     */
+    double getStandardError() {
+        double sum = 0;
+        int n = 0;
+        for (double slope : slopes) {
+            if (!Double.isNaN(slope)) {
+                sum += slope;
+                n++;
+            }
+        }
+        final double mean = sum / n;
+        double sumSquares = 0;
+        for (double slope : slopes) {
+            if (!Double.isNaN(slope)) {
+                sumSquares += (slope - mean) * (slope - mean);
+            }
+        }
+        return Math.sqrt(sumSquares / (n - 1));
+    }
+
+    /**
+     * The given fraction (0 .. 1) of the resampled slopes are at or below
+     * the returned slope. Percentile interval bounds are
+     * getQuantile(0.025) and getQuantile(0.975).
+     */
+    double getQuantile(double fraction) {
+        // NaN sorts last, so the valid slopes come first
+        int n = slopes.length;
+        while (n > 0 && Double.isNaN(slopes[n - 1])) {
+            n--;
+        }
+        if (n == 0) {
+            return Double.NaN;
+        }
+        final double position = fraction * (n - 1);
+        final int below = (int) Math.floor(position);
+        final int above = Math.min(n - 1, below + 1);
+        return slopes[below] + (position - below) * (slopes[above] - slopes[below]);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The grids of a box count: every box size with each of its translations,
+ * chosen the same way as in FractalCount_.
+ *
+ * Free Software in the Public domain.
+ */
+
+class BoxGrids {
+
+    private final int[] boxSizes;
+
+    private final int[] gridSize;
+
+    private final int[] gridOffsetX;
+
+    private final int[] gridOffsetY;
+
+    private final int[] gridOffsetZ;
+
+    // Grids of boxSizes[i] are first[i] .. first[i + 1] - 1
+    private final int[] first;
+
+    BoxGrids(int[] boxSizes, int numOffsets, int width, int height, int depth) {
+        this.boxSizes = boxSizes.clone();
+        first = new int[boxSizes.length + 1];
+
+        int numGrids = 0;
+        for (int i = 0; i < boxSizes.length; i++) {
+            final int increment = Math.max(1, boxSizes[i] / numOffsets);
+            first[i] = numGrids;
+            numGrids += countOffsets(boxSizes[i], increment, width)
+                    * countOffsets(boxSizes[i], increment, height)
+                    * countOffsets(boxSizes[i], increment, depth);
+        }
+        first[boxSizes.length] = numGrids;
+
+        gridSize = new int[numGrids];
+        gridOffsetX = new int[numGrids];
+        gridOffsetY = new int[numGrids];
+        gridOffsetZ = new int[numGrids];
+
+        int g = 0;
+        for (final int boxSize : boxSizes) {
+            final int increment = Math.max(1, boxSize / numOffsets);
+            for (int gridOffsetX = 0; (gridOffsetX < boxSize)
+                    && (gridOffsetX < width); gridOffsetX += increment) {
+                for (int gridOffsetY = 0; (gridOffsetY < boxSize)
+                        && (gridOffsetY < height); gridOffsetY += increment) {
+                    for (int gridOffsetZ = 0; (gridOffsetZ < boxSize)
+                            && (gridOffsetZ < depth); gridOffsetZ += increment) {
+                        gridSize[g] = boxSize;
+                        this.gridOffsetX[g] = gridOffsetX;
+                        this.gridOffsetY[g] = gridOffsetY;
+                        this.gridOffsetZ[g] = gridOffsetZ;
+                        g++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds grids from an explicit list; used when reading jobs back.
+     */
+    BoxGrids(int[] gridSize, int[] gridOffsetX, int[] gridOffsetY, int[] gridOffsetZ) {
+        this.gridSize = gridSize;
+        this.gridOffsetX = gridOffsetX;
+        this.gridOffsetY = gridOffsetY;
+        this.gridOffsetZ = gridOffsetZ;
+
+        int sizes = 0;
+        for (int g = 0; g < gridSize.length; g++) {
+            if (g == 0 || gridSize[g] != gridSize[g - 1]) {
+                sizes++;
+            }
+        }
+        boxSizes = new int[sizes];
+        first = new int[sizes + 1];
+        int i = 0;
+        for (int g = 0; g < gridSize.length; g++) {
+            if (g == 0 || gridSize[g] != gridSize[g - 1]) {
+                boxSizes[i] = gridSize[g];
+                first[i++] = g;
+            }
+        }
+        first[sizes] = gridSize.length;
+    }
+
+    private static int countOffsets(int boxSize, int increment, int length) {
+        final int limit = Math.min(boxSize, length);
+        return (limit + increment - 1) / increment;
+    }
+
+    int getNumSizes() {
+        return boxSizes.length;
+    }
+
+    int getBoxSize(int i) {
+        return boxSizes[i];
+    }
+
+    int[] getBoxSizes() {
+        return boxSizes.clone();
+    }
+
+    int getFirstGrid(int i) {
+        return first[i];
+    }
+
+    int getEndGrid(int i) {
+        return first[i + 1];
+    }
+
+    int getNumGrids() {
+        return gridSize.length;
+    }
+
+    int getSize(int g) {
+        return gridSize[g];
+    }
+
+    int getOffsetX(int g) {
+        return gridOffsetX[g];
+    }
+
+    int getOffsetY(int g) {
+        return gridOffsetY[g];
+    }
+
+    int getOffsetZ(int g) {
+        return gridOffsetZ[g];
+    }
+
+    /**
+     * Returns the smallest of the grid counts of each box size.
+     */
+    long[] getBestCounts(long[] gridCounts) {
+        long[] best = new long[boxSizes.length];
+        for (int i = 0; i < boxSizes.length; i++) {
+            best[i] = Long.MAX_VALUE;
+            for (int g = first[i]; g < first[i + 1]; g++) {
+                best[i] = Math.min(best[i], gridCounts[g]);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the grid counts of each box size, one array per size with
+     * the counts of its translations.
+     */
+    long[][] getCountsBySize(long[] gridCounts) {
+        long[][] counts = new long[boxSizes.length][];
+        for (int i = 0; i < boxSizes.length; i++) {
+            counts[i] = new long[first[i + 1] - first[i]];
+            System.arraycopy(gridCounts, first[i], counts[i], 0, counts[i].length);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Box occupancy of every grid of a binary box count, kept between runs of
+ * FractalCount_ so that an edit only recounts the boxes it touches.
+ *
+ * The edited region is found by comparing tile checksums of the stack with
+ * those of the previous run, which still reads every pixel once (see
+ * TileChecksums). Only that region is thresholded again, and only the boxes
+ * that intersect it are tested; the counts are patched with the boxes whose
+ * occupancy changed.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class BoxOccupancyState {
+
+    private static final int MAX_IMAGES = 4;
+
+    private static final Map<Integer, BoxOccupancyState> states = new LinkedHashMap<Integer, BoxOccupancyState>(8, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, BoxOccupancyState> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    private final double threshold;
+
+    private final int numOffsets;
+
+    private final BoxGrids grids;
+
+    private final BinaryVolume volume;
+
+    private final long[][] occupied;
+
+    private final long[] gridCounts;
+
+    private TileChecksums checksums;
+
+    private BoxOccupancyState(ImageStack stack, double threshold, int[] boxSizes, int numOffsets) {
+        this.threshold = threshold;
+        this.numOffsets = numOffsets;
+        volume = BinaryVolume.fromStack(stack, threshold);
+        grids = new BoxGrids(boxSizes, numOffsets, volume.getWidth(), volume.getHeight(), volume.getDepth());
+        checksums = checksums(stack);
+
+        final int numGrids = grids.getNumGrids();
+        occupied = new long[numGrids][];
+        gridCounts = new long[numGrids];
+        for (int g = 0; g < numGrids; g++) {
+            final int[] boxes = boxesPerAxis(g);
+            occupied[g] = new long[(int) (((long) boxes[0] * boxes[1] * boxes[2] + 63) >> 6)];
+            recount(g, 0, 0, 0, volume.getWidth(), volume.getHeight(), volume.getDepth());
+        }
+    }
+
+    /**
+     * Returns the state of the image with the given ID, brought up to date
+     * with stack, or a new state if there is none for these settings.
+     * changed receives the region that was recounted, or null if the
+     * whole image was counted or nothing changed.
+     */
+    static synchronized BoxOccupancyState update(int imageID, ImageStack stack, double threshold,
+                                                 int[] boxSizes, int numOffsets, int[][] changed) {
+        changed[0] = null;
+        BoxOccupancyState state = states.get(imageID);
+        if (state != null && state.matches(stack, threshold, boxSizes, numOffsets)) {
+            changed[0] = state.update(stack);
+            return state;
+        }
+        state = new BoxOccupancyState(stack, threshold, boxSizes, numOffsets);
+        states.put(imageID, state);
+        return state;
+    }
+
+    static synchronized void remove(int imageID) {
+        states.remove(imageID);
+    }
+
+    BoxGrids getGrids() {
+        return grids;
+    }
+
+    long[] getGridCounts() {
+        return gridCounts.clone();
+    }
+
+    private boolean matches(ImageStack stack, double threshold, int[] boxSizes, int numOffsets) {
+        return this.threshold == threshold && this.numOffsets == numOffsets
+                && Arrays.equals(grids.getBoxSizes(), boxSizes)
+                && stack.getWidth() == volume.getWidth() && stack.getHeight() == volume.getHeight()
+                && stack.getSize() == volume.getDepth();
+    }
+
+    private int[] update(ImageStack stack) {
+        TileChecksums current = checksums(stack);
+        int[] region = current.changedRegion(checksums);
+        checksums = current;
+        if (region == null) {
+            return null;
+        }
+
+        volume.threshold(stack, threshold, region[0], region[1], region[2], region[3], region[4], region[5]);
+        for (int g = 0; g < grids.getNumGrids(); g++) {
+            recount(g, region[0], region[1], region[2], region[3], region[4], region[5]);
+        }
+        return region;
+    }
+
+    private static TileChecksums checksums(ImageStack stack) {
+        Object[] slices = new Object[stack.getSize()];
+        for (int z = 0; z < slices.length; z++) {
+            slices[z] = stack.getPixels(z + 1);
+        }
+        return new TileChecksums(stack.getWidth(), stack.getHeight(), slices);
+    }
+
+    private int[] boxesPerAxis(int g) {
+        final int boxSize = grids.getSize(g);
+        return new int[]{
+                (volume.getWidth() + grids.getOffsetX(g) + boxSize - 1) / boxSize,
+                (volume.getHeight() + grids.getOffsetY(g) + boxSize - 1) / boxSize,
+                (volume.getDepth() + grids.getOffsetZ(g) + boxSize - 1) / boxSize};
+    }
+
+    /**
+     * Tests the boxes of grid g that intersect [x0, x1) x [y0, y1) x [z0, z1)
+     * and patches the count with those that changed.
+     */
+    private void recount(int g, int x0, int y0, int z0, int x1, int y1, int z1) {
+        final int boxSize = grids.getSize(g);
+        final int offsetX = grids.getOffsetX(g);
+        final int offsetY = grids.getOffsetY(g);
+        final int offsetZ = grids.getOffsetZ(g);
+        final int[] boxes = boxesPerAxis(g);
+        final long[] bits = occupied[g];
+        final int width = volume.getWidth(), height = volume.getHeight(), depth = volume.getDepth();
+
+        for (int bz = (z0 + offsetZ) / boxSize; bz <= (z1 - 1 + offsetZ) / boxSize; bz++) {
+            final int zStart = Math.max(0, bz * boxSize - offsetZ);
+            final int zEnd = Math.min(depth, (bz + 1) * boxSize - offsetZ);
+
+            for (int by = (y0 + offsetY) / boxSize; by <= (y1 - 1 + offsetY) / boxSize; by++) {
+                final int yStart = Math.max(0, by * boxSize - offsetY);
+                final int yEnd = Math.min(height, (by + 1) * boxSize - offsetY);
+
+                for (int bx = (x0 + offsetX) / boxSize; bx <= (x1 - 1 + offsetX) / boxSize; bx++) {
+                    final int xStart = Math.max(0, bx * boxSize - offsetX);
+                    final int xEnd = Math.min(width, (bx + 1) * boxSize - offsetX);
+
+                    final long index = bx + (long) boxes[0] * (by + (long) boxes[1] * bz);
+                    final int word = (int) (index >> 6);
+                    final long bit = 1L << (index & 63);
+                    final boolean wasOccupied = (bits[word] & bit) != 0;
+                    final boolean isOccupied = volume.anyInBox(xStart, yStart, zStart, xEnd, yEnd, zEnd);
+
+                    if (isOccupied && !wasOccupied) {
+                        bits[word] |= bit;
+                        gridCounts[g]++;
+                    } else if (!isOccupied && wasOccupied) {
+                        bits[word] &= ~bit;
+                        gridCounts[g]--;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Chooses the box sizes of a box count adaptively, from the largest size
+ * down, and finds the linear scaling region as the counts come in.
+ *
+ * The candidate sizes are spaced evenly in log scale. Each is snapped to the
+ * smallest size that tiles the image with the same number of boxes, and
+ * sizes that give a grid already counted are skipped. Counting stops when
+ * the slope of the fit has stayed within a tolerance for a few sizes, or
+ * when a new size falls off the line, which ends the scaling region.
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+class BoxSizeScheduler {
+
+    // Four sizes per halving of the box size
+    static final double SIZE_FACTOR = Math.pow(2, 0.25);
+
+    // Sizes fitted before the scaling region is judged
+    private static final int MIN_POINTS = 5;
+
+    // The fit has settled when the slope moves less than this ...
+    private static final double SLOPE_TOLERANCE = 0.01;
+
+    // ... for this many sizes in a row
+    private static final int PATIENCE = 3;
+
+    // A point is off the line when its residual is this many times the RMS
+    // residual of the region, and at least MIN_OUTLIER in log units
+    private static final double OUTLIER_FACTOR = 3;
+
+    private static final double MIN_OUTLIER = 0.05;
+
+    private final int[] candidates;
+
+    private final int numDuplicates;
+
+    private final List<Integer> sizes = new ArrayList<Integer>();
+
+    private final List<Long> counts = new ArrayList<Long>();
+
+    private double slope = Double.NaN;
+
+    private int settled = 0;
+
+    private String stopReason = null;
+
+    BoxSizeScheduler(int maxBox, int minBox, int width, int height) {
+        List<Integer> sizeList = new ArrayList<Integer>();
+        int duplicates = 0;
+        int lastBoxesX = -1, lastBoxesY = -1;
+        for (double size = maxBox; size >= minBox; size /= SIZE_FACTOR) {
+            final int boxesX = (width + (int) size - 1) / (int) size;
+            final int boxesY = (height + (int) size - 1) / (int) size;
+            if (boxesX == lastBoxesX && boxesY == lastBoxesY) {
+                duplicates++;
+                continue;
+            }
+            // The smallest size with the same grid leaves the least overhang
+            final int snapped = Math.max(minBox, Math.max((width + boxesX - 1) / boxesX,
+                    (height + boxesY - 1) / boxesY));
+            if (!sizeList.isEmpty() && snapped >= sizeList.get(sizeList.size() - 1)) {
+                duplicates++;
+                continue;
+            }
+            sizeList.add(snapped);
+            lastBoxesX = boxesX;
+            lastBoxesY = boxesY;
+        }
+
+        candidates = new int[sizeList.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = sizeList.get(i);
+        }
+        numDuplicates = duplicates;
+    }
+
+    /**
+     * The candidate sizes, largest first. They are counted in this order
+     * until isStopped(); counters that count every size in one pass give
+     * all their counts to add() in this order.
+     */
+    int[] getCandidates() {
+        return candidates.clone();
+    }
+
+    boolean isStopped() {
+        return stopReason != null;
+    }
+
+    /**
+     * Adds the count of the next candidate size, and decides whether to go
+     * on. Counts given after the scheduler has stopped are ignored.
+     */
+    void add(int boxSize, long count) {
+        if (stopReason != null) {
+            return;
+        }
+        sizes.add(boxSize);
+        counts.add(count);
+        final int n = sizes.size();
+        if (n < 2) {
+            return;
+        }
+
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = -Math.log(sizes.get(i));
+            y[i] = Math.log(counts.get(i));
+        }
+
+        if (n > MIN_POINTS) {
+            // Is the new point on the line through the region so far?
+            final double previous = LineFit.slope(x, y, n - 1);
+            double meanX = 0, meanY = 0;
+            for (int i = 0; i < n - 1; i++) {
+                meanX += x[i];
+                meanY += y[i];
+            }
+            meanX /= n - 1;
+            meanY /= n - 1;
+            double sumSquares = 0;
+            for (int i = 0; i < n - 1; i++) {
+                final double r = y[i] - meanY - previous * (x[i] - meanX);
+                sumSquares += r * r;
+            }
+            final double rms = Math.sqrt(sumSquares / (n - 1));
+            final double residual = Math.abs(y[n - 1] - meanY - previous * (x[n - 1] - meanX));
+            if (residual > Math.max(MIN_OUTLIER, OUTLIER_FACTOR * rms)) {
+                sizes.remove(n - 1);
+                counts.remove(n - 1);
+                stopReason = "box size " + boxSize + " is off the line (residual " + round(residual) + ")";
+                return;
+            }
+        }
+
+        final double newSlope = LineFit.slope(x, y, n);
+        if (n >= MIN_POINTS && Math.abs(newSlope - slope) < SLOPE_TOLERANCE) {
+            settled++;
+        } else {
+            settled = 0;
+        }
+        slope = newSlope;
+        if (settled >= PATIENCE) {
+            stopReason = "slope settled at " + round(slope) + " over the last " + PATIENCE + " sizes";
+        }
+    }
+
+    /**
+     * Box sizes of the scaling region, largest first.
+     */
+    int[] getSizes() {
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Box counts of the sizes of the scaling region.
+     */
+    long[] getCounts() {
+        long[] result = new long[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * What the scheduler did, one line per item, for the log.
+     */
+    List<String> getReport() {
+        List<String> report = new ArrayList<String>();
+        StringBuilder sizeText = new StringBuilder();
+        for (int i = 0; i < candidates.length; i++) {
+            sizeText.append(i == 0 ? "" : ", ").append(candidates[i]);
+        }
+        report.add("Adaptive box sizes: " + candidates.length + " log-spaced candidates (" + sizeText + "), "
+                + numDuplicates + " skipped as duplicate grids");
+        if (!sizes.isEmpty()) {
+            report.add("Scaling region: box sizes " + sizes.get(0) + " to " + sizes.get(sizes.size() - 1)
+                    + ", " + sizes.size() + " sizes");
+        }
+        report.add("Stopped: " + (stopReason != null ? stopReason : "all candidate sizes counted"));
+        return report;
+    }
+
+    private static String round(double value) {
+        return String.valueOf(Math.round(value * 10000) / 10000.0);
+    }
+}
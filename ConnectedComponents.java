@@ -0,0 +1,243 @@
+/*
+ * Connected components of a binary volume, 8-connected in 2D and
+ * 26-connected in 3D.
+ *
+ * The volume is labelled in a single raster pass: each foreground voxel
+ * takes the label of an earlier neighbour, and the labels of its other
+ * earlier neighbours are joined in a union-find forest. The bounding box and
+ * size of each provisional label are kept during the pass and merged into
+ * its root afterwards, so the voxels are not visited again. Labels are kept
+ * per slice, so that stacks of any depth can be indexed.
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.Arrays;
+
+class ConnectedComponents {
+
+    private final int width;
+
+    private final int height;
+
+    // Provisional label of each voxel, by slice, 0 for background
+    private final int[][] labels;
+
+    // Component of each provisional label, 1 .. count
+    private final int[] component;
+
+    private final int count;
+
+    // Bounding boxes [x0, x1) x [y0, y1) x [z0, z1) and sizes, by component - 1
+    private final int[] x0, y0, z0, x1, y1, z1;
+
+    private final long[] voxels;
+
+    private ConnectedComponents(int width, int height, int[][] labels, int[] component, int count) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.component = component;
+        this.count = count;
+        x0 = new int[count];
+        y0 = new int[count];
+        z0 = new int[count];
+        x1 = new int[count];
+        y1 = new int[count];
+        z1 = new int[count];
+        voxels = new long[count];
+    }
+
+    static ConnectedComponents label(BinaryVolume volume) {
+        final int width = volume.getWidth();
+        final int height = volume.getHeight();
+        final int depth = volume.getDepth();
+
+        // The neighbours that come before a voxel in raster order
+        int[][] neighbours = new int[depth > 1 ? 13 : 4][];
+        int n = 0;
+        for (int dz = depth > 1 ? -1 : 0; dz <= 0; dz++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (dz < 0 || dy < 0 || (dy == 0 && dx < 0)) {
+                        neighbours[n++] = new int[]{dx, dy, dz};
+                    }
+                }
+            }
+        }
+
+        int[][] labels = new int[depth][width * height];
+        int[] parent = new int[64];
+        int[] minX = new int[64], minY = new int[64], minZ = new int[64];
+        int[] maxX = new int[64], maxY = new int[64], maxZ = new int[64];
+        long[] size = new long[64];
+        int next = 1;
+
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (!volume.get(x, y, z)) {
+                        continue;
+                    }
+                    int label = 0;
+                    for (int[] d : neighbours) {
+                        final int nx = x + d[0], ny = y + d[1], nz = z + d[2];
+                        if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0) {
+                            continue;
+                        }
+                        final int other = labels[nz][nx + ny * width];
+                        if (other == 0) {
+                            continue;
+                        }
+                        if (label == 0) {
+                            label = other;
+                        } else if (other != label) {
+                            union(parent, label, other);
+                        }
+                    }
+
+                    if (label == 0) {
+                        if (next == parent.length) {
+                            final int length = 2 * parent.length;
+                            parent = copyOf(parent, length);
+                            minX = copyOf(minX, length);
+                            minY = copyOf(minY, length);
+                            minZ = copyOf(minZ, length);
+                            maxX = copyOf(maxX, length);
+                            maxY = copyOf(maxY, length);
+                            maxZ = copyOf(maxZ, length);
+                            long[] newSize = new long[length];
+                            System.arraycopy(size, 0, newSize, 0, size.length);
+                            size = newSize;
+                        }
+                        label = next++;
+                        parent[label] = label;
+                        minX[label] = maxX[label] = x;
+                        minY[label] = maxY[label] = y;
+                        minZ[label] = maxZ[label] = z;
+                    } else {
+                        minX[label] = Math.min(minX[label], x);
+                        maxX[label] = Math.max(maxX[label], x);
+                        minY[label] = Math.min(minY[label], y);
+                        maxY[label] = Math.max(maxY[label], y);
+                        // z only grows in raster order
+                        maxZ[label] = z;
+                    }
+                    size[label]++;
+                    labels[z][x + y * width] = label;
+                }
+            }
+        }
+
+        // Number the roots, and merge each provisional label into its root
+        int[] component = new int[next];
+        int count = 0;
+        for (int label = 1; label < next; label++) {
+            if (find(parent, label) == label) {
+                component[label] = ++count;
+            }
+        }
+        ConnectedComponents result = new ConnectedComponents(width, height, labels, component, count);
+        Arrays.fill(result.x0, Integer.MAX_VALUE);
+        Arrays.fill(result.y0, Integer.MAX_VALUE);
+        Arrays.fill(result.z0, Integer.MAX_VALUE);
+        for (int label = 1; label < next; label++) {
+            final int c = component[find(parent, label)];
+            component[label] = c;
+            final int i = c - 1;
+            result.x0[i] = Math.min(result.x0[i], minX[label]);
+            result.y0[i] = Math.min(result.y0[i], minY[label]);
+            result.z0[i] = Math.min(result.z0[i], minZ[label]);
+            result.x1[i] = Math.max(result.x1[i], maxX[label] + 1);
+            result.y1[i] = Math.max(result.y1[i], maxY[label] + 1);
+            result.z1[i] = Math.max(result.z1[i], maxZ[label] + 1);
+            result.voxels[i] += size[label];
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        // The smaller label becomes the root, so that roots come first
+        if (a < b) {
+            parent[b] = a;
+        } else if (b < a) {
+            parent[a] = b;
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Component of the voxel, 1 .. getCount(), or 0 for background.
+     */
+    int getComponent(int x, int y, int z) {
+        return component[labels[z][x + y * width]];
+    }
+
+    int getX(int c) {
+        return x0[c - 1];
+    }
+
+    int getY(int c) {
+        return y0[c - 1];
+    }
+
+    int getZ(int c) {
+        return z0[c - 1];
+    }
+
+    int getWidth(int c) {
+        return x1[c - 1] - x0[c - 1];
+    }
+
+    int getHeight(int c) {
+        return y1[c - 1] - y0[c - 1];
+    }
+
+    int getDepth(int c) {
+        return z1[c - 1] - z0[c - 1];
+    }
+
+    long getVoxels(int c) {
+        return voxels[c - 1];
+    }
+
+    /**
+     * The voxels of one component in a volume the size of its bounding box.
+     * Other components that reach into the box are left out.
+     */
+    BinaryVolume extract(int c) {
+        final int i = c - 1;
+        BinaryVolume volume = new BinaryVolume(x1[i] - x0[i], y1[i] - y0[i], z1[i] - z0[i]);
+        for (int z = z0[i]; z < z1[i]; z++) {
+            for (int y = y0[i]; y < y1[i]; y++) {
+                final int[] slice = labels[z];
+                final int rowStart = y * width;
+                for (int x = x0[i]; x < x1[i]; x++) {
+                    if (component[slice[rowStart + x]] == c) {
+                        volume.set(x - x0[i], y - y0[i], z - z0[i]);
+                    }
+                }
+            }
+        }
+        return volume;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Estimates the correlation dimension (Grassberger and Procaccia) and the
+ * mass-radius dimension of 2D and 3D binary images. Unlike box counting,
+ * neither depends on where a grid is placed.
+ *
+ * The foreground pixels are indexed once in a uniform grid (PointGrid).
+ * For the correlation sum C(r), every centre counts its neighbours within
+ * all the radii in one visit of the cells around it. The centres can be a
+ * random sample of the foreground, to bound the run time on large images,
+ * and are spread over threads. The mass-radius dimension counts the mass
+ * within each radius of the foreground point nearest the centre of mass.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
+import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CorrelationDimension_ implements PlugInFilter {
+
+    private ImagePlus imRef;
+
+    private boolean noGo = false;
+
+    private static final int AUTO_DIV = 4;
+
+    // Fixed, so that sampled estimates can be reproduced
+    private static final long SAMPLE_SEED = 0x5DEECE66DL;
+
+    // One row per radius, in the format of the box counts
+    private static final String CURVE_TITLE = "Correlation sums";
+
+    // User-changeable defaults:
+    private boolean plotGraph = true;
+
+    private boolean showPlotCoordinates = false;
+
+    private boolean quiet = false;
+
+    private boolean autoParam = true;
+
+    private double threshold = 70;
+
+    private double maxRadius = 24;
+
+    private double minRadius = 2;
+
+    private int numRadii = 12;
+
+    private int maxCentres = 10000;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    public int setup(String arg, ImagePlus imp) {
+        imRef = imp;
+
+        if (arg.equals("about")) {
+            showAbout();
+            return DONE;
+        }
+
+        getParams();
+
+        return DOES_8G + DOES_16 + DOES_32;
+    }
+
+    private void getParams() {
+        GenericDialog gd = new GenericDialog("Calculate correlation dimension");
+
+        gd.addCheckbox("Plot results", plotGraph);
+        gd.addCheckbox("Show plot coordinates", showPlotCoordinates);
+        gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
+        gd.addCheckbox("Automatic max radius", autoParam);
+        gd.addMessage("");
+        gd.addNumericField("Threshold", threshold, 0);
+        gd.addNumericField("Max radius", maxRadius, 1);
+        gd.addNumericField("Min radius", minRadius, 1);
+        gd.addNumericField("Number of radii", numRadii, 0);
+        gd.addNumericField("Sampled centres (0 = all)", maxCentres, 0);
+        gd.addNumericField("Threads", numThreads, 0);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            if (imRef != null) {
+                imRef.unlock();
+                imRef = null;
+            }
+            noGo = true;
+            return;
+        }
+
+        plotGraph = gd.getNextBoolean();
+        showPlotCoordinates = gd.getNextBoolean();
+        quiet = gd.getNextBoolean();
+        autoParam = gd.getNextBoolean();
+        if (quiet) {
+            plotGraph = false;
+            showPlotCoordinates = false;
+        }
+
+        threshold = gd.getNextNumber();
+        maxRadius = gd.getNextNumber();
+        minRadius = gd.getNextNumber();
+        numRadii = (int) gd.getNextNumber();
+        maxCentres = (int) gd.getNextNumber();
+        numThreads = (int) gd.getNextNumber();
+        if (minRadius <= 0 || numRadii < 2 || maxCentres < 0 || numThreads < 1) {
+            IJ.log("Min radius must be positive, number of radii at least 2 and number of threads at least 1."
+                    + " Please select other values");
+            noGo = true;
+        }
+    }
+
+    public void run(ImageProcessor ip) {
+        if (noGo) {
+            return;
+        }
+
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final int depth = imRef.getStackSize();
+
+        if (autoParam) {
+            maxRadius = Math.max(width, Math.max(height, depth)) / (double) AUTO_DIV;
+        }
+        if (maxRadius <= minRadius) {
+            IJ.log("\nError: No radii!\nMake sure that the max radius is larger than the min radius.");
+            imRef.unlock();
+            return;
+        }
+
+        IJ.showStatus("Indexing foreground..");
+        long startTime = System.currentTimeMillis();
+        final PointGrid points = PointGrid.fromStack(imRef.getStack(), threshold,
+                Math.max(1, (int) Math.ceil(maxRadius)));
+        if (points.getNumPoints() < 2) {
+            IJ.log("\nNo black pixels in image. Dimension not defined."
+                    + "\nThis can be caused by an empty image or a"
+                    + "\n wrong threshold value.");
+            imRef.unlock();
+            return;
+        }
+
+        // Logarithmically spaced radii
+        final double[] radii = new double[numRadii];
+        final double[] radii2 = new double[numRadii];
+        for (int k = 0; k < numRadii; k++) {
+            radii[k] = minRadius * Math.pow(maxRadius / minRadius, k / (numRadii - 1.0));
+            radii2[k] = radii[k] * radii[k];
+        }
+
+        IJ.showStatus("Estimating correlation dimension..");
+        final int[] centres = sampleCentres(points.getNumPoints(), maxCentres);
+        double[] correlation;
+        try {
+            correlation = correlationSum(points, centres, radii2, numThreads);
+        } catch (Exception e) {
+            IJ.log("\nError: Correlation sum failed: " + e);
+            imRef.unlock();
+            return;
+        }
+        double[] mass = massRadius(points, radii2);
+
+        if (showPlotCoordinates) {
+            IJ.log("\nRadius + correlation sum + mass pairs:");
+            for (int k = 0; k < numRadii; k++) {
+                IJ.log(IJ.d2s(radii[k], 3) + ", " + correlation[k] + ", " + (long) mass[k]);
+            }
+            IJ.log("");
+        }
+
+        double[] correlationFit = fit(radii, correlation);
+        double[] massFit = fit(radii, mass);
+        showResults(radii, correlation, mass, correlationFit, massFit, centres.length);
+        if (!quiet) {
+            final String settings = ": Settings: " + IJ.d2s(maxRadius, 1) + ":" + IJ.d2s(minRadius, 1)
+                    + ":" + numRadii + ":" + centres.length;
+            IJ.log(imRef.getTitle() + ": Correlation dimension: "
+                    + (correlationFit == null ? "undefined" : IJ.d2s(correlationFit[1], 4)) + settings);
+            IJ.log(imRef.getTitle() + ": Mass-radius dimension: "
+                    + (massFit == null ? "undefined" : IJ.d2s(massFit[1], 4)) + settings);
+        }
+        IJ.showStatus("Correlation dimension done in "
+                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+        if (plotGraph) {
+            if (correlationFit != null) {
+                doPlotGraph("Correlation sum", "log(C(r))", correlationFit, radii, correlation);
+            }
+            if (massFit != null) {
+                doPlotGraph("Mass-radius", "log(mass)", massFit, radii, mass);
+            }
+        }
+
+        imRef.unlock();
+    }
+
+    /**
+     * Indices of the centres: all points, or a random sample of maxCentres
+     * of them if maxCentres is positive and smaller.
+     */
+    static int[] sampleCentres(int numPoints, int maxCentres) {
+        int[] index = new int[numPoints];
+        for (int p = 0; p < numPoints; p++) {
+            index[p] = p;
+        }
+        if (maxCentres == 0 || maxCentres >= numPoints) {
+            return index;
+        }
+
+        // Partial Fisher-Yates shuffle
+        Random random = new Random(SAMPLE_SEED);
+        for (int i = 0; i < maxCentres; i++) {
+            final int j = i + random.nextInt(numPoints - i);
+            final int tmp = index[i];
+            index[i] = index[j];
+            index[j] = tmp;
+        }
+        int[] sample = new int[maxCentres];
+        System.arraycopy(index, 0, sample, 0, maxCentres);
+        return sample;
+    }
+
+    /**
+     * The correlation sum C(r) for each squared radius: the fraction of
+     * pairs of a centre and another point that are at most r apart.
+     */
+    static double[] correlationSum(final PointGrid points, final int[] centres, final double[] radii2,
+                                   int numThreads) throws InterruptedException, ExecutionException {
+        final int numRadii = radii2.length;
+        final int chunk = (centres.length + numThreads - 1) / numThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            for (int start = 0; start < centres.length; start += chunk) {
+                final int first = start;
+                final int end = Math.min(centres.length, start + chunk);
+                results.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() {
+                        long[] histogram = new long[numRadii];
+                        long[] counts = new long[numRadii];
+                        for (int i = first; i < end; i++) {
+                            final int p = centres[i];
+                            points.countWithin(points.getX(p), points.getY(p), points.getZ(p),
+                                    radii2, histogram, counts);
+                        }
+                        return counts;
+                    }
+                }));
+            }
+
+            long[] total = new long[numRadii];
+            for (int i = 0; i < results.size(); i++) {
+                long[] counts = results.get(i).get();
+                for (int k = 0; k < numRadii; k++) {
+                    total[k] += counts[k];
+                }
+                IJ.showProgress(i + 1, results.size());
+            }
+
+            // Each centre counts itself once at every radius
+            final double pairs = (double) centres.length * (points.getNumPoints() - 1);
+            double[] correlation = new double[numRadii];
+            for (int k = 0; k < numRadii; k++) {
+                correlation[k] = (total[k] - centres.length) / pairs;
+            }
+            return correlation;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The mass within each squared radius of the foreground point nearest
+     * the centre of mass. The centre of mass itself can lie in a hole.
+     */
+    static double[] massRadius(PointGrid points, double[] radii2) {
+        double cx = 0, cy = 0, cz = 0;
+        final int numPoints = points.getNumPoints();
+        for (int p = 0; p < numPoints; p++) {
+            cx += points.getX(p);
+            cy += points.getY(p);
+            cz += points.getZ(p);
+        }
+        cx /= numPoints;
+        cy /= numPoints;
+        cz /= numPoints;
+
+        int centre = 0;
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int p = 0; p < numPoints; p++) {
+            final double dx = points.getX(p) - cx, dy = points.getY(p) - cy, dz = points.getZ(p) - cz;
+            final double d2 = dx * dx + dy * dy + dz * dz;
+            if (d2 < nearest) {
+                nearest = d2;
+                centre = p;
+            }
+        }
+
+        long[] counts = new long[radii2.length];
+        points.countWithin(points.getX(centre), points.getY(centre), points.getZ(centre), radii2,
+                new long[radii2.length], counts);
+
+        double[] mass = new double[radii2.length];
+        for (int k = 0; k < mass.length; k++) {
+            mass[k] = counts[k];
+        }
+        return mass;
+    }
+
+    /**
+     * Fits a line to log(y) against log(r) over the radii where y is
+     * positive. Returns the line parameters, or null if there are fewer
+     * than two such radii.
+     */
+    /**
+     * Adds a row with both dimensions to the Results table, and a row per
+     * radius with C(r) and the mass to the correlation sums table.
+     */
+    private void showResults(double[] radii, double[] correlation, double[] mass, double[] correlationFit,
+                             double[] massFit, int numCentres) {
+        final String label = imRef.getTitle();
+        ResultsTable rt = ResultsTable.getResultsTable();
+        rt.incrementCounter();
+        rt.addLabel(label);
+        rt.addValue("Correlation dimension", correlationFit == null ? Double.NaN : correlationFit[1]);
+        rt.addValue("Mass-radius dimension", massFit == null ? Double.NaN : massFit[1]);
+        rt.addValue("Radii", numRadii);
+        rt.addValue("Max radius", maxRadius);
+        rt.addValue("Min radius", minRadius);
+        rt.addValue("Centres", numCentres);
+
+        ResultsTable curves = FitResults.getTable(CURVE_TITLE);
+        for (int k = 0; k < radii.length; k++) {
+            curves.incrementCounter();
+            curves.addLabel(label);
+            curves.addValue("Radius", radii[k]);
+            curves.addValue("C(r)", correlation[k]);
+            curves.addValue("Mass", mass[k]);
+        }
+        FitResults.show(rt);
+    }
+
+    private static double[] fit(double[] radii, double[] y) {
+        List<Double> logR = new ArrayList<Double>();
+        List<Double> logY = new ArrayList<Double>();
+        for (int k = 0; k < radii.length; k++) {
+            if (y[k] > 0) {
+                logR.add(Math.log(radii[k]));
+                logY.add(Math.log(y[k]));
+            }
+        }
+        if (logR.size() < 2) {
+            return null;
+        }
+        double[] x = new double[logR.size()];
+        double[] v = new double[logY.size()];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = logR.get(i);
+            v[i] = logY.get(i);
+        }
+        CurveFitter cf = new CurveFitter(x, v);
+        cf.doFit(CurveFitter.STRAIGHT_LINE);
+        return cf.getParams();
+    }
+
+    void doPlotGraph(String title, String yLabel, double[] params, double[] radii, double[] y) {
+        List<Double> xList = new ArrayList<Double>();
+        List<Double> yList = new ArrayList<Double>();
+        for (int k = 0; k < radii.length; k++) {
+            if (y[k] > 0) {
+                xList.add(Math.log(radii[k]));
+                yList.add(Math.log(y[k]));
+            }
+        }
+        float[] logR = new float[xList.size()];
+        float[] logY = new float[yList.size()];
+        for (int i = 0; i < logR.length; i++) {
+            logR[i] = xList.get(i).floatValue();
+            logY[i] = yList.get(i).floatValue();
+        }
+
+        final int samples = 100;
+        float[] px = new float[samples];
+        float[] py = new float[samples];
+        double[] a = Tools.getMinMax(logR);
+        double xmin = a[0], xmax = a[1];
+        a = Tools.getMinMax(logY);
+        double ymin = a[0], ymax = a[1];
+        final double inc = (xmax - xmin) / ((double) samples - 1);
+        for (int i = 0; i < samples; i++) {
+            px[i] = (float) (xmin + i * inc);
+            py[i] = (float) CurveFitter.f(CurveFitter.STRAIGHT_LINE, params, px[i]);
+        }
+        a = Tools.getMinMax(py);
+        ymin = Math.min(ymin, a[0]);
+        ymax = Math.max(ymax, a[1]);
+
+        Plot plot = new Plot(title, "log(radius)", yLabel, px, py);
+        plot.setLimits(xmin, xmax, ymin, ymax + 0.1 * Math.abs(ymax));
+        plot.addPoints(logR, logY, PlotWindow.CIRCLE);
+        plot.addLabel(0.25, 0.25, "Slope: " + IJ.d2s(params[1], 4));
+        plot.draw();
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About CorrelationDimension..",
+                "This plugin calculates the correlation dimension and the\n"
+                        + "mass-radius dimension of 2D and 3D binary images.");
+    }
+
+}
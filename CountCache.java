@@ -0,0 +1,121 @@
+/*
+ * In-session cache of box counts, so that re-running a plugin with other
+ * box sizes or another fit range only counts the grids it has not seen.
+ *
+ * Counts are keyed by the image ID, a fingerprint of the pixel data that is
+ * counted and the settings that change a count, plus the box size and
+ * translation of the grid. Editing the image, or its calibration when
+ * calibrated values are counted, changes the fingerprint, so stale counts
+ * are never returned. The least recently used counts are
+ * dropped when the cache is full.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class CountCache {
+
+    private static final int MAX_ENTRIES = 200000;
+
+    private static final Map<Key, Long> counts = new LinkedHashMap<Key, Long>(1024, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private CountCache() {
+    }
+
+    /**
+     * Returns the key for the counts of imp with the given pixel fingerprint
+     * and count settings.
+     */
+    static String imageKey(ImagePlus imp, long fingerprint, String settings) {
+        return imp.getID() + ":" + Long.toHexString(fingerprint) + ":" + settings;
+    }
+
+    static synchronized Long get(String imageKey, int boxSize, int offsetX, int offsetY, int offsetZ) {
+        return counts.get(new Key(imageKey, boxSize, offsetX, offsetY, offsetZ));
+    }
+
+    static synchronized void put(String imageKey, int boxSize, int offsetX, int offsetY, int offsetZ, long count) {
+        counts.put(new Key(imageKey, boxSize, offsetX, offsetY, offsetZ), count);
+    }
+
+    /**
+     * 64-bit fingerprint of a pixel array (byte[], short[], float[] or int[]).
+     */
+    static long fingerprint(Object pixels) {
+        return fingerprint(0xcbf29ce484222325L, pixels);
+    }
+
+    /**
+     * Fingerprint of the calibrated values of ip, as getPixelValue() gives
+     * them: its pixels and its calibration table, if any.
+     */
+    static long calibratedFingerprint(ImageProcessor ip) {
+        return fingerprint(fingerprint(ip.getPixels()), ip.getCalibrationTable());
+    }
+
+    private static long fingerprint(long hash, Object pixels) {
+        if (pixels instanceof byte[]) {
+            for (byte value : (byte[]) pixels) {
+                hash = (hash ^ value) * 0x100000001b3L;
+            }
+        } else if (pixels instanceof short[]) {
+            for (short value : (short[]) pixels) {
+                hash = (hash ^ value) * 0x100000001b3L;
+            }
+        } else if (pixels instanceof float[]) {
+            for (float value : (float[]) pixels) {
+                hash = (hash ^ Float.floatToIntBits(value)) * 0x100000001b3L;
+            }
+        } else if (pixels instanceof int[]) {
+            for (int value : (int[]) pixels) {
+                hash = (hash ^ value) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private static class Key {
+
+        private final String imageKey;
+
+        private final int boxSize;
+
+        private final int offsetX;
+
+        private final int offsetY;
+
+        private final int offsetZ;
+
+        Key(String imageKey, int boxSize, int offsetX, int offsetY, int offsetZ) {
+            this.imageKey = imageKey;
+            this.boxSize = boxSize;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.offsetZ = offsetZ;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return boxSize == other.boxSize && offsetX == other.offsetX
+                    && offsetY == other.offsetY && offsetZ == other.offsetZ
+                    && imageKey.equals(other.imageKey);
+        }
+
+        public int hashCode() {
+            return ((imageKey.hashCode() * 31 + boxSize) * 31 + offsetX) * 31
+                    + offsetY * 17 + offsetZ;
+        }
+    }
+}
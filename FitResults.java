@@ -0,0 +1,172 @@
+/*
+ * Writes the result of a box count to ResultsTables, so that macros can
+ * read it with getResult() instead of parsing the log.
+ *
+ * Each estimate adds a row to the Results table with the dimension and the
+ * statistics of the fit, and one row per box size to the "Box counts"
+ * table with the curve that was fitted. Rows are appended, so a macro that
+ * runs a plugin over many images collects all of them.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.measure.ResultsTable;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+class FitResults {
+
+    static final String CURVE_TITLE = "Box counts";
+
+    // The table windows are redrawn at most this often
+    private static final long SHOW_MILLIS = 1000;
+
+    // Tables other than Results, by title
+    private static final Map<String, ResultsTable> tables = new LinkedHashMap<String, ResultsTable>();
+
+    // Titles of the tables that have a window
+    private static final Set<String> shown = new HashSet<String>();
+
+    // Titles of the tables with rows that are not drawn yet
+    private static final Set<String> changed = new HashSet<String>();
+
+    private static ResultsTable results = null;
+
+    private static long lastShown = 0;
+
+    private static boolean showPending = false;
+
+    private static Timer timer = null;
+
+    private FitResults() {
+    }
+
+    /**
+     * Adds the fit of log(count) against -log(size) for the given box sizes
+     * (in pixels) and counts. Returns the Results table with the new row as
+     * its last, so that a plugin can add columns of its own before calling
+     * show().
+     */
+    static synchronized ResultsTable add(String label, double[] sizes, double[] counts) {
+        final int n = sizes.length;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double minSize = Double.POSITIVE_INFINITY, maxSize = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            x[i] = -Math.log(sizes[i]);
+            y[i] = Math.log(counts[i]);
+            minSize = Math.min(minSize, sizes[i]);
+            maxSize = Math.max(maxSize, sizes[i]);
+        }
+        final boolean fitted = n >= 2;
+
+        ResultsTable rt = ResultsTable.getResultsTable();
+        rt.incrementCounter();
+        rt.addLabel(label);
+        rt.addValue("Dimension", fitted ? LineFit.slope(x, y, n) : Double.NaN);
+        rt.addValue("Intercept", fitted ? LineFit.intercept(x, y, n) : Double.NaN);
+        rt.addValue("R^2", fitted ? LineFit.rSquared(x, y, n) : Double.NaN);
+        rt.addValue("SE", LineFit.slopeStandardError(x, y, n));
+        rt.addValue("Box sizes", n);
+        rt.addValue("Max box", maxSize);
+        rt.addValue("Min box", minSize);
+
+        addCurve(CURVE_TITLE, label, "Box size", sizes, "Count", counts);
+        return rt;
+    }
+
+    /**
+     * Adds one row per point of a curve to the table with the given title,
+     * in the format of the box counts.
+     */
+    static synchronized void addCurve(String title, String label, String xName, double[] x,
+            String yName, double[] y) {
+        ResultsTable table = getTable(title);
+        for (int i = 0; i < x.length; i++) {
+            table.incrementCounter();
+            table.addLabel(label);
+            table.addValue(xName, x[i]);
+            table.addValue(yName, y[i]);
+        }
+    }
+
+    /**
+     * Returns the table with the given title for new rows, to be drawn by
+     * the next show(). Once shown, the table is the one in its window, so
+     * rows the user cleared stay cleared; if the window was closed, a new
+     * table is started.
+     */
+    static synchronized ResultsTable getTable(String title) {
+        ResultsTable table = tables.get(title);
+        if (table != null && shown.contains(title)) {
+            ResultsTable open = ResultsTable.getResultsTable(title);
+            if (open != table) {
+                table = open != null ? open : new ResultsTable();
+                tables.put(title, table);
+                if (open == null) {
+                    shown.remove(title);
+                }
+            }
+        }
+        if (table == null) {
+            table = new ResultsTable();
+            tables.put(title, table);
+        }
+        changed.add(title);
+        return table;
+    }
+
+    /**
+     * Shows the Results table and the tables with new rows. A window
+     * redraws all of its rows, so a run over many images would spend more
+     * time drawing than counting: within SHOW_MILLIS of the last drawing,
+     * the tables are drawn once when that time is up, with all rows added
+     * meanwhile. The rows are in the tables at once, so macros can read
+     * them before they are drawn. Callers that add many rows at once may
+     * also show them once at the end. Pass null if no row was added to the
+     * Results table.
+     */
+    static synchronized void show(ResultsTable rt) {
+        if (rt != null) {
+            results = rt;
+        }
+        if (showPending) {
+            return;
+        }
+        final long wait = lastShown + SHOW_MILLIS - System.currentTimeMillis();
+        if (wait <= 0) {
+            showNow();
+            return;
+        }
+        if (timer == null) {
+            timer = new Timer("FitResults", true);
+        }
+        showPending = true;
+        timer.schedule(new TimerTask() {
+            public void run() {
+                synchronized (FitResults.class) {
+                    showNow();
+                }
+            }
+        }, wait);
+    }
+
+    private static void showNow() {
+        if (results != null) {
+            results.show("Results");
+            results = null;
+        }
+        for (String title : changed) {
+            tables.get(title).show(title);
+            shown.add(title);
+        }
+        changed.clear();
+        showPending = false;
+        lastShown = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Scaling and accuracy benchmark of the box counts, run outside ImageJ
+ * (ij.jar on the class path):
+ *
+ *   java FractalBenchmark [maxSize [maxThreads [output.csv [repeats]]]]
+ *
+ * Synthetic images of known dimension are made at growing sizes: the
+ * Sierpinski carpet (log 8 / log 3) for the binary count of FractalCount_,
+ * and fractional Brownian surfaces (3 - H, by random midpoint displacement)
+ * for the surface counts of MapFractalCount_, SDBC_ and GreyFractalCount_.
+ * Each backend runs the count method of its plugin. The threaded grid
+ * count of FractalCount_ runs at 1, 2, 4 .. maxThreads threads, and its
+ * worker processes (ShardedBoxCount) at as many processes; the other
+ * backends count on one thread, as their plugins do. Box sizes follow the
+ * automatic settings of the plugins. The surface counts leave out the
+ * subgraph, so that they estimate the dimension of the surface.
+ *
+ * One CSV row per run: estimator, backend, input, size, threads (or worker
+ * processes), box sizes, grids, the best wall time of the repeats (after
+ * one warm-up run), the peak heap of that run (inputs included), throughput
+ * in megapixels per second, and the estimated, expected and absolute error
+ * of the dimension.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class FractalBenchmark {
+
+    private static final double CARPET_DIMENSION = Math.log(8) / Math.log(3);
+
+    private static final double[] HURST = {0.3, 0.5, 0.8};
+
+    private static final long SEED = 0x5eed;
+
+    // Automatic settings of the plugins
+    private static final int AUTO_DIV = 4;
+
+    private static final int BINARY_MIN_BOX = 6;
+
+    private static final int SURFACE_MIN_BOX = 2;
+
+    private static final double DIV_BOX = 1.2;
+
+    private static final int BINARY_OFFSETS = 3;
+
+    private static final int SURFACE_OFFSETS = 1;
+
+    /**
+     * One way of counting all box sizes of an input. Returns the count of
+     * each box size.
+     */
+    private interface Backend {
+        double[] count(int threads) throws Exception;
+    }
+
+    private final PrintWriter out;
+
+    private final int maxThreads;
+
+    private final int repeats;
+
+    private FractalBenchmark(PrintWriter out, int maxThreads, int repeats) {
+        this.out = out;
+        this.maxThreads = maxThreads;
+        this.repeats = repeats;
+    }
+
+    public static void main(String[] args) {
+        final int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        final String output = args.length > 2 ? args[2] : "fractal-benchmark.csv";
+        final int repeats = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        if (maxSize < 16 || maxThreads < 1 || repeats < 1) {
+            System.err.println("Usage: java FractalBenchmark [maxSize >= 16 [maxThreads [output.csv [repeats]]]]");
+            System.exit(2);
+        }
+
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(output));
+            try {
+                out.println("estimator,backend,input,size,threads,box_sizes,grids,wall_ms,peak_heap_mb,"
+                        + "mpixels_per_s,dimension,expected,abs_error");
+                FractalBenchmark benchmark = new FractalBenchmark(out, maxThreads, repeats);
+                for (int size = 81; size <= maxSize; size *= 3) {
+                    benchmark.runBinary(size);
+                }
+                for (int size = 64; size <= maxSize; size *= 2) {
+                    for (double hurst : HURST) {
+                        benchmark.runSurface(size, hurst);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            System.err.println("FractalBenchmark: " + e);
+            System.exit(1);
+        }
+        System.out.println("Wrote " + output);
+    }
+
+    private void runBinary(final int size) throws Exception {
+        final byte[] carpet = carpet(size);
+        final int[] sizes = FractalCount_.getBoxSizes(size / AUTO_DIV, Math.min(BINARY_MIN_BOX, size / AUTO_DIV), DIV_BOX);
+        final BoxGrids grids = new BoxGrids(sizes, BINARY_OFFSETS, size, size, 1);
+        final String input = "carpet";
+
+        ImageStack stack = new ImageStack(size, size);
+        stack.addSlice(null, carpet);
+        final BinaryVolume volume = BinaryVolume.fromStack(stack, 128);
+        run("FractalCount", "binary-volume", input, size, sizes, grids.getNumGrids(), CARPET_DIMENSION, true,
+                new Backend() {
+                    public double[] count(int threads) throws Exception {
+                        long[] gridCounts = new long[grids.getNumGrids()];
+                        FractalCount_.countGrids(volume, grids, null, gridCounts, threads);
+                        return toDouble(grids.getBestCounts(gridCounts));
+                    }
+                });
+
+        run("FractalCount", "worker-processes", input, size, sizes, grids.getNumGrids(), CARPET_DIMENSION, true,
+                new Backend() {
+                    public double[] count(int workers) throws Exception {
+                        return toDouble(grids.getBestCounts(ShardedBoxCount.count(volume, grids, workers, false)));
+                    }
+                });
+
+        run("FractalCount", "row-stream", input, size, sizes, grids.getNumGrids(), CARPET_DIMENSION, false,
+                new Backend() {
+                    public double[] count(int threads) {
+                        RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.BINARY, size, size,
+                                sizes, BINARY_OFFSETS);
+                        counter.setThreshold(128);
+                        float[] row = new float[size];
+                        for (int y = 0; y < size; y++) {
+                            for (int x = 0; x < size; x++) {
+                                row[x] = carpet[y * size + x] & 0xff;
+                            }
+                            counter.addRow(row);
+                        }
+                        return toDouble(counter.getBestCounts());
+                    }
+                });
+    }
+
+    private void runSurface(final int size, double hurst) throws Exception {
+        final float[] surface = surface(size, hurst);
+        final int[] sizes = FractalCount_.getBoxSizes(size / AUTO_DIV, SURFACE_MIN_BOX, DIV_BOX);
+        final BoxGrids grids = new BoxGrids(sizes, SURFACE_OFFSETS, size, size, 1);
+        final String input = "fbm-H" + hurst;
+        final double expected = 3 - hurst;
+
+        final FloatProcessor ip = new FloatProcessor(size, size, surface, null);
+        float min = Float.POSITIVE_INFINITY;
+        for (float value : surface) {
+            min = Math.min(min, value);
+        }
+        final float surfaceMin = min;
+        run("MapFractalCount", "translated-grids", input, size, sizes, grids.getNumGrids(), expected, false,
+                new Backend() {
+                    public double[] count(int threads) {
+                        long[] gridCounts = new long[grids.getNumGrids()];
+                        for (int g = 0; g < gridCounts.length; g++) {
+                            gridCounts[g] = MapFractalCount_.countBoxes(ip, grids.getSize(g), grids.getOffsetX(g),
+                                    grids.getOffsetY(g), 1.0, false, surfaceMin);
+                        }
+                        return toDouble(grids.getBestCounts(gridCounts));
+                    }
+                });
+
+        run("MapFractalCount", "row-stream", input, size, sizes, grids.getNumGrids(), expected, false,
+                new Backend() {
+                    public double[] count(int threads) {
+                        RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.SURFACE, size, size,
+                                sizes, SURFACE_OFFSETS);
+                        counter.setSurface(1.0, false, surfaceMin);
+                        float[] row = new float[size];
+                        for (int y = 0; y < size; y++) {
+                            System.arraycopy(surface, y * size, row, 0, size);
+                            counter.addRow(row);
+                        }
+                        return toDouble(counter.getBestCounts());
+                    }
+                });
+
+        // SDBC_ and the estimators of GreyFractalCount_ count the aligned
+        // grid from a fresh index, so each run includes building it
+        for (int e = 0; e < GreyBoxIndex.ESTIMATOR_NAMES.length; e++) {
+            final int estimator = e;
+            final String name = e == GreyBoxIndex.SDBC ? "SDBC" : "GreyFractalCount " + GreyBoxIndex.ESTIMATOR_NAMES[e];
+            run(name, "box-index", input, size, sizes, sizes.length, expected, false,
+                    new Backend() {
+                        public double[] count(int threads) {
+                            GreyBoxIndex index = new GreyBoxIndex(surface, size, size);
+                            double[] counts = new double[sizes.length];
+                            for (int i = sizes.length - 1; i >= 0; i--) {
+                                counts[i] = index.count(estimator, sizes[i]);
+                            }
+                            return counts;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Times a backend at each thread count and writes a row for each.
+     */
+    private void run(String estimator, String backend, String input, int size, int[] sizes, int numGrids,
+            double expected, boolean threaded, Backend counter) throws Exception {
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < maxThreads && threaded; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(threaded ? maxThreads : 1);
+
+        for (int threads : threadCounts) {
+            double[] counts = counter.count(threads);
+            long bestNanos = Long.MAX_VALUE;
+            long peakBytes = 0;
+            for (int r = 0; r < repeats; r++) {
+                System.gc();
+                resetPeakHeap();
+                final long start = System.nanoTime();
+                counts = counter.count(threads);
+                final long nanos = System.nanoTime() - start;
+                if (nanos < bestNanos) {
+                    bestNanos = nanos;
+                    peakBytes = getPeakHeap();
+                }
+            }
+
+            double[] logSizes = new double[sizes.length];
+            double[] logCounts = new double[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                logSizes[i] = -Math.log(sizes[i]);
+                logCounts[i] = Math.log(counts[i]);
+            }
+            final double dimension = LineFit.slope(logSizes, logCounts, sizes.length);
+            final double millis = bestNanos / 1e6;
+            out.println(String.format(Locale.US, "%s,%s,%s,%d,%d,%d,%d,%.3f,%.1f,%.3f,%.4f,%.4f,%.4f",
+                    estimator, backend, input, size, threads, sizes.length, numGrids, millis,
+                    peakBytes / (1024.0 * 1024.0), (double) size * size / 1e6 / (millis / 1000),
+                    dimension, expected, Math.abs(dimension - expected)));
+            out.flush();
+            System.out.println(estimator + " / " + backend + " / " + input + " " + size + "x" + size + ", "
+                    + threads + " threads: " + String.format(Locale.US, "%.1f ms, D = %.4f", millis, dimension));
+        }
+    }
+
+    private static double[] toDouble(long[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * The Sierpinski carpet of side size (a power of 3), foreground 255.
+     */
+    static byte[] carpet(int size) {
+        byte[] pixels = new byte[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean hole = false;
+                for (int a = x, b = y; a > 0 || b > 0; a /= 3, b /= 3) {
+                    if (a % 3 == 1 && b % 3 == 1) {
+                        hole = true;
+                        break;
+                    }
+                }
+                pixels[y * size + x] = hole ? 0 : (byte) 255;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * A fractional Brownian surface of side size (a power of 2) with Hurst
+     * exponent hurst, by random midpoint displacement (diamond-square),
+     * scaled to 0 .. 255 and rounded down like an 8-bit image.
+     */
+    static float[] surface(int size, double hurst) {
+        final int n = size + 1;
+        double[] z = new double[n * n];
+        SplitMix64 random = new SplitMix64(SEED + Double.doubleToLongBits(hurst));
+        double scale = 1;
+        for (int step = size; step > 1; step /= 2) {
+            final int half = step / 2;
+            scale *= Math.pow(0.5, hurst);
+            // Diamond: centres of the squares
+            for (int y = half; y < n; y += step) {
+                for (int x = half; x < n; x += step) {
+                    z[y * n + x] = (z[(y - half) * n + x - half] + z[(y - half) * n + x + half]
+                            + z[(y + half) * n + x - half] + z[(y + half) * n + x + half]) / 4
+                            + scale * gaussian(random);
+                }
+            }
+            // Square: midpoints of the edges
+            for (int y = 0; y < n; y += half) {
+                for (int x = (y / half) % 2 == 0 ? half : 0; x < n; x += step) {
+                    double sum = 0;
+                    int count = 0;
+                    if (y >= half) {
+                        sum += z[(y - half) * n + x];
+                        count++;
+                    }
+                    if (y + half < n) {
+                        sum += z[(y + half) * n + x];
+                        count++;
+                    }
+                    if (x >= half) {
+                        sum += z[y * n + x - half];
+                        count++;
+                    }
+                    if (x + half < n) {
+                        sum += z[y * n + x + half];
+                        count++;
+                    }
+                    z[y * n + x] = sum / count + scale * gaussian(random);
+                }
+            }
+        }
+
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                min = Math.min(min, z[y * n + x]);
+                max = Math.max(max, z[y * n + x]);
+            }
+        }
+        float[] pixels = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                pixels[y * size + x] = (float) Math.floor(255.999 * (z[y * n + x] - min) / (max - min));
+            }
+        }
+        return pixels;
+    }
+
+    private static double gaussian(SplitMix64 random) {
+        // Box-Muller, from two uniforms in (0, 1]
+        final double u = ((random.nextLong() >>> 11) + 1) / (double) (1L << 53);
+        final double v = (random.nextLong() >>> 11) / (double) (1L << 53);
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+    }
+}
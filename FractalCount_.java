@@ -12,12 +12,19 @@ import ij.gui.GenericDialog;
 import ij.gui.Plot;
 import ij.gui.PlotWindow;
 import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ij.util.Tools;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class FractalCount_ implements PlugInFilter {
 
@@ -27,14 +34,22 @@ public class FractalCount_ implements PlugInFilter {
 
     private static final int AUTO_DIV = 4;
 
+    // Objects are counted in batches of about this many voxels of bounding box
+    private static final long OBJECT_BATCH_VOXELS = 1 << 16;
+
+    // One row per q of the multifractal spectrum
+    private static final String SPECTRUM_TITLE = "Multifractal spectrum";
+
     // User-changeable defaults:
     private boolean plotGraph = true;
 
     private boolean verboseOutput = false;
 
+    private boolean quiet = false;
+
     private boolean showPlotCoordinates = false;
 
-    private int threshold = 70;
+    private double threshold = 70;
 
     private int maxBox = 24;
 
@@ -48,6 +63,41 @@ public class FractalCount_ implements PlugInFilter {
 
     private boolean autoParam = true;
 
+    private boolean streamRows = false;
+
+    private int workerProcesses = 0;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private boolean useCache = true;
+
+    private boolean keepState = false;
+
+    private boolean liveUpdate = false;
+
+    private boolean multifractal = false;
+
+    private double lowestQ = -10;
+
+    private double highestQ = 10;
+
+    private double qStep = 1;
+
+    private boolean perObject = false;
+
+    private boolean progressive = false;
+
+    private int bootstrapResamples = 2000;
+
+    // Counts of every translation of each box size of the last count
+    private long[][] countsBySize = null;
+
+    // Set for the runs started by a live update
+    private boolean liveRun = false;
+
+    // The plot a progressive count updates in place
+    private PlotWindow progressPlot = null;
+
     public int setup(String arg, ImagePlus imp) {
         imRef = imp;
 
@@ -57,8 +107,12 @@ public class FractalCount_ implements PlugInFilter {
         }
 
         getParams();
+        if (!noGo && !liveUpdate && imRef != null) {
+            // A run without live update ends the live update of an earlier run
+            LiveUpdate.stop(imRef);
+        }
 
-        return DOES_8G;
+        return DOES_8G + DOES_16 + DOES_32;
     }
 
     private void getParams() {
@@ -66,14 +120,28 @@ public class FractalCount_ implements PlugInFilter {
 
         gd.addCheckbox("Plot results", plotGraph);
         gd.addCheckbox("Verbose output", verboseOutput);
+        gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
         gd.addCheckbox("Show plot coordinates", showPlotCoordinates);
         gd.addCheckbox("Automatic start box size", autoParam);
+        gd.addCheckbox("Stream rows in a single pass (2D only)", streamRows);
+        gd.addCheckbox("Reuse cached counts", useCache);
+        gd.addCheckbox("Incremental update after edits", keepState);
+        gd.addCheckbox("Live update while editing", liveUpdate);
+        gd.addCheckbox("Multifractal spectrum (Dq and f(alpha))", multifractal);
+        gd.addCheckbox("Per-object dimension (connected components)", perObject);
+        gd.addCheckbox("Progressive estimate (Esc to stop)", progressive);
         gd.addMessage("");
-        gd.addNumericField("Threshold", threshold, 0);
+        gd.addNumericField("Threshold", threshold, imRef != null && imRef.getBitDepth() == 32 ? 3 : 0);
         gd.addNumericField("Start box size", maxBox, 0);
         gd.addNumericField("Min box size", minBox, 0);
         gd.addNumericField("Box division factor", divBox, 1);
         gd.addNumericField("Number of translations", numOffsets, 0);
+        gd.addNumericField("Worker processes (0 = count in ImageJ)", workerProcesses, 0);
+        gd.addNumericField("Threads", numThreads, 0);
+        gd.addNumericField("Lowest q", lowestQ, 1);
+        gd.addNumericField("Highest q", highestQ, 1);
+        gd.addNumericField("q step", qStep, 2);
+        gd.addNumericField("Bootstrap resamples (0 = off)", bootstrapResamples, 0);
 
         gd.showDialog();
 
@@ -87,18 +155,48 @@ public class FractalCount_ implements PlugInFilter {
 
         plotGraph = gd.getNextBoolean();
         verboseOutput = gd.getNextBoolean();
+        quiet = gd.getNextBoolean();
         showPlotCoordinates = gd.getNextBoolean();
         autoParam = gd.getNextBoolean();
+        streamRows = gd.getNextBoolean();
+        useCache = gd.getNextBoolean();
+        keepState = gd.getNextBoolean();
+        liveUpdate = gd.getNextBoolean();
+        if (liveUpdate) {
+            keepState = true;
+        }
+        multifractal = gd.getNextBoolean();
+        perObject = gd.getNextBoolean();
+        progressive = gd.getNextBoolean();
+        if (quiet) {
+            plotGraph = false;
+            verboseOutput = false;
+            showPlotCoordinates = false;
+        }
 
-        threshold = (int) gd.getNextNumber();
+        threshold = gd.getNextNumber();
         maxBox = (int) gd.getNextNumber();
         minBox = (int) gd.getNextNumber();
         divBox = gd.getNextNumber();
         numOffsets = (int) gd.getNextNumber();
+        workerProcesses = (int) gd.getNextNumber();
+        numThreads = (int) gd.getNextNumber();
+        lowestQ = gd.getNextNumber();
+        highestQ = gd.getNextNumber();
+        qStep = gd.getNextNumber();
+        bootstrapResamples = (int) gd.getNextNumber();
+        if (multifractal && (qStep <= 0 || highestQ < lowestQ)) {
+            IJ.log("The q step must be positive and the highest q at least the lowest q. Please select other values");
+            noGo = true;
+        }
         if (numOffsets < 1) {
             IJ.log("Number of offsets must be at least 1. Please select another value");
             noGo = true;
         }
+        if (numThreads < 1) {
+            IJ.log("Number of threads must be at least 1. Please select another value");
+            noGo = true;
+        }
     }
 
     public void run(ImageProcessor ip) {
@@ -118,6 +216,12 @@ public class FractalCount_ implements PlugInFilter {
             return;
         }
 
+        if (perObject) {
+            doObjectCounts();
+            unlockImage();
+            return;
+        }
+
         if (autoParam) {
             maxBox = Math.max(width, Math.max(height, depth)) / AUTO_DIV;
             minBox = Math.min(DEFAULT_MIN_BOX, maxBox);
@@ -134,7 +238,26 @@ public class FractalCount_ implements PlugInFilter {
         // Do the box count
         List<Long> xList = new ArrayList<Long>();
         List<Long> yList = new ArrayList<Long>();
-        doBoxCount(width, height, depth, xList, yList);
+        countsBySize = null;
+        if (streamRows) {
+            if (depth > 1) {
+                IJ.log("\nError: Streaming rows is only supported for 2D images.");
+                unlockImage();
+                return;
+            }
+            if (!doStreamingBoxCount(ip, width, height, xList, yList)) {
+                unlockImage();
+                return;
+            }
+        } else if (progressive && !liveRun) {
+            if (!doProgressiveBoxCount(width, height, depth, xList, yList)) {
+                unlockImage();
+                return;
+            }
+        } else if (!doBoxCount(width, height, depth, xList, yList)) {
+            unlockImage();
+            return;
+        }
 
         if (verboseOutput) {
             IJ.log("\nTime used: "
@@ -161,6 +284,7 @@ public class FractalCount_ implements PlugInFilter {
         if (boxSizes.length == 0) {
             IJ.log("\nError: No boxes!\nMake sure that starting and ending box size and "
                     + "\nreduction rate allow for at least one box size to exist!");
+            unlockImage();
             return;
         }
 
@@ -172,137 +296,577 @@ public class FractalCount_ implements PlugInFilter {
             IJ.log("");
         }
 
-        if (plotGraph) {
+        // Not after every edit of a live update
+        final Bootstrap bootstrap = liveRun ? null : doBootstrap(xList);
+        if (plotGraph || liveRun) {
             CurveFitter cf = new CurveFitter(boxSizes, boxCountSums);
             cf.doFit(CurveFitter.STRAIGHT_LINE);
             double[] p = cf.getParams();
-            final String label = imRef.getTitle()
-                    + ": Dimension estimate: " + IJ.d2s(p[1], 4)
-                    + ": Settings: " + maxBox + ":" + minBox + ":" + divBox
-                    + ":" + numOffsets;
+            String label = imRef.getTitle() + ": Dimension estimate: " + IJ.d2s(p[1], 4);
+            if (bootstrap != null) {
+                label += ": 95% CI: " + IJ.d2s(bootstrap.getQuantile(0.025), 4)
+                        + " - " + IJ.d2s(bootstrap.getQuantile(0.975), 4)
+                        + ": SE: " + IJ.d2s(bootstrap.getStandardError(), 4);
+            }
+            label += ": Settings: " + maxBox + ":" + minBox + ":" + divBox + ":" + numOffsets;
             IJ.log(label);
 
-            doPlotGraph(p, boxSizes, boxCountSums);
+            if (!liveRun) {
+                doPlotGraph(p, boxSizes, boxCountSums);
+            }
         }
 
+        if (!liveRun) {
+            double[] sizes = new double[xList.size()];
+            double[] counts = new double[yList.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = xList.get(i);
+                counts[i] = yList.get(i);
+            }
+            ResultsTable rt = FitResults.add(imRef.getTitle(), sizes, counts);
+            rt.addValue("Translations", numOffsets);
+            if (bootstrap != null) {
+                rt.addValue("CI low", bootstrap.getQuantile(0.025));
+                rt.addValue("CI high", bootstrap.getQuantile(0.975));
+                rt.addValue("Bootstrap SE", bootstrap.getStandardError());
+            }
+            FitResults.show(rt);
+        }
+
+        if (multifractal && !liveRun) {
+            doMultifractal(width, height, depth);
+        }
+
+        // Unlock first: once started, a live re-run may set liveRun
+        final boolean startLive = liveUpdate && !liveRun;
+        unlockImage();
+
+        if (startLive) {
+            final ImagePlus imp = imRef;
+            LiveUpdate.start(imp, new Runnable() {
+                public void run() {
+                    liveRun = true;
+                    FractalCount_.this.run(imp.getProcessor());
+                }
+            });
+        }
+    }
 
-        if (imRef != null) {
+    /**
+     * Releases the lock that ImageJ took on the image for setup() and run().
+     * Live re-runs call run() without setup(), hold no lock, and must not
+     * release one that an editing command may hold.
+     */
+    private void unlockImage() {
+        if (imRef != null && !liveRun) {
             imRef.unlock();
         }
     }
 
-    private void doBoxCount(int width, int height, int depth, List<Long> boxSizes, List<Long> boxCounts) {
-        long bestCount; // keeps track of best count so far
-        long count = 0; // current count
-        int xPos, yPos, zPos, yPart;
-        int xGrid, yGrid, zGrid;
-        int xStart, yStart, zStart;
-        int xEnd, yEnd, zEnd;
+    /**
+     * Bootstraps the dimension over the box sizes and translations of the
+     * last count. Returns null if the bootstrap is off or not possible.
+     */
+    private Bootstrap doBootstrap(List<Long> xList) {
+        if (bootstrapResamples <= 0 || countsBySize == null || countsBySize.length != xList.size()) {
+            return null;
+        }
+        int[] sizes = new int[xList.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = xList.get(i).intValue();
+        }
+
+        long startTime = System.currentTimeMillis();
+        Bootstrap bootstrap;
+        try {
+            bootstrap = Bootstrap.resample(sizes, countsBySize, bootstrapResamples, Bootstrap.DEFAULT_SEED,
+                    numThreads);
+        } catch (Exception e) {
+            IJ.log("\nError: Bootstrap failed: " + e);
+            return null;
+        }
+        if (bootstrap != null && verboseOutput) {
+            IJ.log("Bootstrap of " + bootstrap.getNumResamples() + " resamples took "
+                    + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        }
+        return bootstrap;
+    }
+
+    private int[] getBoxSizes() {
+        return getBoxSizes(maxBox, minBox, divBox);
+    }
 
+    static int[] getBoxSizes(int maxBox, int minBox, double divBox) {
+        List<Integer> sizeList = new ArrayList<Integer>();
         for (int boxSize = maxBox; boxSize >= minBox; boxSize /= divBox) {
+            sizeList.add(boxSize);
+        }
+        int[] sizes = new int[sizeList.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = sizeList.get(i);
+        }
+        return sizes;
+    }
+
+    private boolean doBoxCount(int width, int height, int depth, List<Long> boxSizes, List<Long> boxCounts) {
+        if (keepState && workerProcesses == 0) {
+            // Patch the occupancy kept from the previous run
+            int[][] changed = new int[1][];
+            BoxOccupancyState state = BoxOccupancyState.update(imRef.getID(), imRef.getStack(),
+                    threshold, getBoxSizes(), numOffsets, changed);
+            if (verboseOutput && changed[0] != null) {
+                final int[] r = changed[0];
+                IJ.log("Recounted the boxes of the edited region x " + r[0] + "-" + r[3]
+                        + ", y " + r[1] + "-" + r[4] + ", z " + r[2] + "-" + r[5]);
+            }
+
+            long[] bestCounts = state.getGrids().getBestCounts(state.getGridCounts());
+            countsBySize = state.getGrids().getCountsBySize(state.getGridCounts());
+            for (int i = 0; i < bestCounts.length; i++) {
+                boxSizes.add((long) state.getGrids().getBoxSize(i));
+                boxCounts.add(bestCounts[i]);
+            }
+            return true;
+        }
+
+        // Threshold once into a tiled layout, so that each box is a few
+        // contiguous memory ranges instead of a walk across slice arrays
+        final BinaryVolume volume = BinaryVolume.fromStack(imRef.getStack(), threshold);
+        final BoxGrids grids = new BoxGrids(getBoxSizes(), numOffsets, width, height, depth);
+
+        // Only count the grids that are not cached from an earlier run
+        final String cacheKey = useCache ? CountCache.imageKey(imRef, volume.fingerprint(), "binary") : null;
+        long[] gridCounts = new long[grids.getNumGrids()];
+        boolean[] cached = new boolean[grids.getNumGrids()];
+        int numCached = 0;
+        if (useCache) {
+            for (int g = 0; g < gridCounts.length; g++) {
+                Long count = CountCache.get(cacheKey, grids.getSize(g),
+                        grids.getOffsetX(g), grids.getOffsetY(g), grids.getOffsetZ(g));
+                if (count != null) {
+                    gridCounts[g] = count;
+                    cached[g] = true;
+                    numCached++;
+                }
+            }
+            if (verboseOutput) {
+                IJ.log("Reused " + numCached + " of " + gridCounts.length + " grid counts from the cache");
+            }
+        }
+
+        if (workerProcesses > 0) {
+            if (numCached < gridCounts.length) {
+                final int numMissing = gridCounts.length - numCached;
+                int[] size = new int[numMissing], offsetX = new int[numMissing];
+                int[] offsetY = new int[numMissing], offsetZ = new int[numMissing];
+                int[] index = new int[numMissing];
+                int m = 0;
+                for (int g = 0; g < gridCounts.length; g++) {
+                    if (!cached[g]) {
+                        size[m] = grids.getSize(g);
+                        offsetX[m] = grids.getOffsetX(g);
+                        offsetY[m] = grids.getOffsetY(g);
+                        offsetZ[m] = grids.getOffsetZ(g);
+                        index[m++] = g;
+                    }
+                }
+
+                long[] missingCounts;
+                try {
+                    missingCounts = ShardedBoxCount.count(volume,
+                            new BoxGrids(size, offsetX, offsetY, offsetZ), workerProcesses, verboseOutput);
+                } catch (IOException e) {
+                    IJ.log("\nError: Sharded box count failed: " + e.getMessage());
+                    return false;
+                }
+                for (m = 0; m < numMissing; m++) {
+                    gridCounts[index[m]] = missingCounts[m];
+                }
+            }
+        } else {
             if (verboseOutput) {
-                String message = "Current boxsize: " + boxSize + " x " + boxSize;
-                if (depth > 1) {
-                    message += " x " + boxSize;
+                IJ.log("Counting " + (gridCounts.length - numCached) + " grids of " + grids.getNumSizes()
+                        + " box sizes on " + numThreads + " threads");
+            }
+            try {
+                countGrids(volume, grids, cached, gridCounts, numThreads);
+            } catch (Exception e) {
+                IJ.log("\nError: Box count failed: " + e);
+                return false;
+            }
+        }
+
+        if (useCache) {
+            for (int g = 0; g < gridCounts.length; g++) {
+                if (!cached[g]) {
+                    CountCache.put(cacheKey, grids.getSize(g), grids.getOffsetX(g),
+                            grids.getOffsetY(g), grids.getOffsetZ(g), gridCounts[g]);
                 }
-                IJ.log(message);
             }
+        }
 
-            bestCount = Long.MAX_VALUE; // initial count for this boxSize
-
-            final int increment = Math.max(1, boxSize / numOffsets);
-
-            for (int gridOffsetX = 0; (gridOffsetX < boxSize)
-                    && (gridOffsetX < width); gridOffsetX += increment) {
-
-                for (int gridOffsetY = 0; (gridOffsetY < boxSize)
-                        && (gridOffsetY < height); gridOffsetY += increment) {
-
-                    for (int gridOffsetZ = 0; (gridOffsetZ < boxSize)
-                            && (gridOffsetZ < depth); gridOffsetZ += increment) {
-
-                        count = 0;
-
-                        final int iMax = width + gridOffsetX;
-                        final int jMax = height + gridOffsetY;
-                        final int kMax = depth + gridOffsetZ;
-
-                        // Iterate over box-grid
-                        for (int i = 0; i <= iMax; i += boxSize) {
-                            xGrid = -gridOffsetX + i;
-                            for (int j = 0; j <= jMax; j += boxSize) {
-                                yGrid = -gridOffsetY + j;
-                                for (int k = 0; k <= kMax; k += boxSize) {
-                                    zGrid = -gridOffsetZ + k;
-
-                                    xStart = 0;
-                                    if (xGrid < 0) {
-                                        xStart = -xGrid;
-                                    }
-                                    if ((boxSize + xGrid) >= width) {
-                                        xEnd = Math.min(width, width - xGrid);
-                                    } else {
-                                        xEnd = boxSize;
-                                    }
-
-                                    yStart = 0;
-                                    if (yGrid < 0) {
-                                        yStart = -yGrid;
-                                    }
-                                    if ((boxSize + yGrid) >= height) {
-                                        yEnd = Math.min(height, height - yGrid);
-                                    } else {
-                                        yEnd = boxSize;
-                                    }
-
-                                    zStart = 0;
-                                    if (zGrid < 0) {
-                                        zStart = -zGrid;
-                                    }
-                                    if ((boxSize + zGrid) >= depth) {
-                                        zEnd = Math.min(depth, depth - zGrid);
-                                    } else {
-                                        zEnd = boxSize;
-                                    }
-
-                                    for (int x = xStart; x < xEnd; x++) {
-                                        xPos = x + xGrid;
-
-                                        for (int y = yStart; y < yEnd; y++) {
-                                            yPos = (y + yGrid);
-                                            yPart = yPos * width;
-
-                                            for (int z = zStart; z < zEnd; z++) {
-                                                zPos = z + zGrid;
-
-                                                // If there is a foreground pixel inside the box, count the box
-                                                int pixelValue = 0xff & ((byte[]) imRef
-                                                        .getStack()
-                                                        .getPixels(zPos + 1))[xPos + yPart];
-                                                if (pixelValue >= threshold) {
-                                                    count++;
-                                                    z = x = y = boxSize; // stop looking through this box
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+        long[] bestCounts = grids.getBestCounts(gridCounts);
+        countsBySize = grids.getCountsBySize(gridCounts);
+        for (int i = 0; i < bestCounts.length; i++) {
+            boxSizes.add((long) grids.getBoxSize(i));
+            boxCounts.add(bestCounts[i]);
+        }
+        return true;
+    }
 
-                        if (count < bestCount) {
-                            bestCount = count;
-                        }
+    /**
+     * Counts the boxes of each grid that is not skipped into gridCounts,
+     * one grid per task on the given number of threads.
+     */
+    static void countGrids(final BinaryVolume volume, final BoxGrids grids, boolean[] skip,
+            final long[] gridCounts, int numThreads) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+            for (int g = 0; g < gridCounts.length; g++) {
+                if (skip != null && skip[g]) {
+                    continue;
+                }
+                final int grid = g;
+                tasks.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        gridCounts[grid] = volume.countBoxes(grids.getSize(grid), grids.getOffsetX(grid),
+                                grids.getOffsetY(grid), grids.getOffsetZ(grid));
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).get();
+                IJ.showProgress(i + 1, tasks.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 
+    private boolean doProgressiveBoxCount(int width, int height, int depth, List<Long> boxSizes, List<Long> boxCounts) {
+        final BinaryVolume volume = BinaryVolume.fromStack(imRef.getStack(), threshold);
+        final BoxGrids grids = new BoxGrids(getBoxSizes(), numOffsets, width, height, depth);
+        final String cacheKey = useCache ? CountCache.imageKey(imRef, volume.fingerprint(), "binary") : null;
+
+        ProgressiveEstimator estimator = new ProgressiveEstimator(grids, new ProgressiveEstimator.GridCounter() {
+            public long count(int g) {
+                Long count = useCache ? CountCache.get(cacheKey, grids.getSize(g),
+                        grids.getOffsetX(g), grids.getOffsetY(g), grids.getOffsetZ(g)) : null;
+                if (count == null) {
+                    count = volume.countBoxes(grids.getSize(g), grids.getOffsetX(g),
+                            grids.getOffsetY(g), grids.getOffsetZ(g));
+                    if (useCache) {
+                        CountCache.put(cacheKey, grids.getSize(g), grids.getOffsetX(g),
+                                grids.getOffsetY(g), grids.getOffsetZ(g), count);
                     }
                 }
+                return count;
+            }
+        });
+
+        progressPlot = null;
+        boolean finished;
+        try {
+            finished = estimator.run(new ProgressiveEstimator.Listener() {
+                public void update(ProgressiveEstimator progress) {
+                    showProvisional(progress);
+                }
+            });
+        } catch (InterruptedException e) {
+            IJ.log("\nError: Progressive box count was interrupted.");
+            return false;
+        }
+        final ProgressiveEstimator.Snapshot snapshot = estimator.snapshot();
+        if (!finished) {
+            if (snapshot.sizes.length == 0) {
+                IJ.log("Stopped with Esc before any grid was counted.");
+                return false;
+            }
+            IJ.log("Stopped with Esc after " + snapshot.unitsDone + " of " + estimator.getNumUnits()
+                    + " grids. The estimate below is provisional.");
+        }
+
+        countsBySize = snapshot.countsBySize;
+        for (int i = 0; i < snapshot.sizes.length; i++) {
+            boxSizes.add((long) snapshot.sizes[i]);
+            boxCounts.add(snapshot.counts[i]);
+        }
+        return true;
+    }
+
+    private void showProvisional(ProgressiveEstimator progress) {
+        final ProgressiveEstimator.Snapshot snapshot = progress.snapshot();
+        final double[] estimate = snapshot.getEstimate();
+        if (Double.isNaN(estimate[0])) {
+            return;
+        }
+        final String band = Double.isNaN(estimate[1]) ? "" : " +/- " + IJ.d2s(estimate[1], 4);
+        final String text = "Provisional dimension: " + IJ.d2s(estimate[0], 4) + band
+                + " (" + snapshot.unitsDone + " of " + progress.getNumUnits() + " grids)";
+        IJ.showStatus(text);
+        if (verboseOutput) {
+            IJ.log(text);
+        }
+
+        if (plotGraph) {
+            final int[] sizes = snapshot.sizes;
+            final long[] counts = snapshot.counts;
+            double[] logSizes = new double[sizes.length];
+            double[] logCounts = new double[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                logSizes[i] = -Math.log(sizes[i]);
+                logCounts[i] = Math.log(counts[i]);
+            }
+            CurveFitter cf = new CurveFitter(logSizes, logCounts);
+            cf.doFit(CurveFitter.STRAIGHT_LINE);
+            Plot plot = makePlot(cf.getParams(), logSizes, logCounts,
+                    "Provisional slope: " + IJ.d2s(estimate[0], 4) + band);
+            if (progressPlot == null) {
+                progressPlot = plot.show();
+            } else {
+                progressPlot.drawPlot(plot);
+            }
+        }
+    }
+
+    private boolean doStreamingBoxCount(ImageProcessor ip, int width, int height, List<Long> boxSizes, List<Long> boxCounts) {
+        int[] sizes = getBoxSizes();
+        RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.BINARY, width, height, sizes, numOffsets);
+        counter.setThreshold(threshold);
+
+        try {
+            RowSource source = RowSource.open(imRef, ip, false);
+            if (verboseOutput) {
+                IJ.log("Streaming " + height + " rows from the "
+                        + (source.isFromFile() ? "original file" : "image")
+                        + " into " + counter.getNumGrids() + " grids");
+            }
+            try {
+                streamRows(source, counter);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            IJ.log("\nError: Could not read the image rows: " + e.getMessage());
+            return false;
+        }
+
+        long[] counts = counter.getBestCounts();
+        countsBySize = counter.getCountsBySize();
+        for (int i = 0; i < sizes.length; i++) {
+            boxSizes.add((long) sizes[i]);
+            boxCounts.add(counts[i]);
+        }
+        return true;
+    }
+
+    static void streamRows(RowSource source, RowStreamCounter counter) throws IOException {
+        final int height = source.getHeight();
+        float[] row = new float[source.getWidth()];
+        for (int y = 0; y < height; y++) {
+            source.nextRow(row);
+            counter.addRow(row);
+            if ((y & 0xff) == 0) {
+                IJ.showProgress(y, height);
+            }
+        }
+        IJ.showProgress(1.0);
+    }
+
+    private void doObjectCounts() {
+        IJ.showStatus("Labelling objects..");
+        long startTime = System.currentTimeMillis();
+        final ConnectedComponents components = ConnectedComponents.label(
+                BinaryVolume.fromStack(imRef.getStack(), threshold));
+        final int count = components.getCount();
+        if (count == 0) {
+            IJ.log("\nNo black pixels in image. Dimension not defined."
+                    + "\nThis can be caused by an empty image or a"
+                    + "\n wrong threshold value.");
+            return;
+        }
+
+        // Small objects are batched so that each task has some work in it
+        final double[] dimensions = new double[count + 1];
+        final int[] numSizes = new int[count + 1];
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> batches = new ArrayList<Future<Object>>();
+            int first = 1;
+            while (first <= count) {
+                int end = first;
+                long batchVoxels = 0;
+                while (end <= count && (end == first || batchVoxels < OBJECT_BATCH_VOXELS)) {
+                    batchVoxels += (long) components.getWidth(end) * components.getHeight(end)
+                            * components.getDepth(end);
+                    end++;
+                }
+                final int batchFirst = first, batchEnd = end;
+                batches.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int c = batchFirst; c < batchEnd; c++) {
+                            countObject(components, c, dimensions, numSizes);
+                        }
+                        return null;
+                    }
+                }));
+                first = end;
+            }
+            for (int i = 0; i < batches.size(); i++) {
+                batches.get(i).get();
+                IJ.showProgress(i + 1, batches.size());
+            }
+        } catch (Exception e) {
+            IJ.log("\nError: Object box count failed: " + e);
+            return;
+        } finally {
+            executor.shutdown();
+        }
+
+        ResultsTable rt = new ResultsTable();
+        int tooSmall = 0;
+        for (int c = 1; c <= count; c++) {
+            rt.incrementCounter();
+            rt.addLabel(imRef.getTitle());
+            rt.addValue("Object", c);
+            rt.addValue("Voxels", components.getVoxels(c));
+            rt.addValue("X", components.getX(c));
+            rt.addValue("Y", components.getY(c));
+            rt.addValue("Z", components.getZ(c));
+            rt.addValue("Width", components.getWidth(c));
+            rt.addValue("Height", components.getHeight(c));
+            rt.addValue("Depth", components.getDepth(c));
+            rt.addValue("Box sizes", numSizes[c]);
+            rt.addValue("Dimension", dimensions[c]);
+            if (numSizes[c] < 2) {
+                tooSmall++;
+                rt.addValue("Note", "Too small for two box sizes");
+            } else {
+                rt.addValue("Note", "");
+            }
+        }
+        rt.show("Object dimensions");
+        if (tooSmall > 0 && !quiet) {
+            IJ.log(tooSmall + " of " + count + " objects are too small for two box sizes from "
+                    + (autoParam ? "1/" + AUTO_DIV + " of their extent" : "the start box size")
+                    + " down to the min box size " + (autoParam ? DEFAULT_MIN_BOX : minBox)
+                    + "; their dimension is NaN");
+        }
+
+        if (verboseOutput) {
+            IJ.log("Counted " + count + " objects in "
+                    + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        }
+    }
+
+    /**
+     * Box counts one object inside its bounding box. With automatic box
+     * sizes, the start size follows the object's size as it follows the
+     * image size otherwise. Objects with fewer than two box sizes get NaN.
+     */
+    private void countObject(ConnectedComponents components, int c, double[] dimensions, int[] numSizes) {
+        final int width = components.getWidth(c);
+        final int height = components.getHeight(c);
+        final int depth = components.getDepth(c);
+        final int extent = Math.max(width, Math.max(height, depth));
+
+        int[] sizes;
+        if (autoParam) {
+            final int objectMaxBox = extent / AUTO_DIV;
+            sizes = getBoxSizes(objectMaxBox, Math.min(DEFAULT_MIN_BOX, objectMaxBox), divBox);
+        } else {
+            sizes = getBoxSizes(Math.min(maxBox, extent), minBox, divBox);
+        }
+        numSizes[c] = sizes.length;
+        if (sizes.length < 2) {
+            dimensions[c] = Double.NaN;
+            return;
+        }
+
+        final BinaryVolume volume = components.extract(c);
+        final BoxGrids grids = new BoxGrids(sizes, numOffsets, width, height, depth);
+        long[] gridCounts = new long[grids.getNumGrids()];
+        for (int g = 0; g < gridCounts.length; g++) {
+            gridCounts[g] = volume.countBoxes(grids.getSize(g), grids.getOffsetX(g),
+                    grids.getOffsetY(g), grids.getOffsetZ(g));
+        }
+        long[] bestCounts = grids.getBestCounts(gridCounts);
+
+        double[] logSizes = new double[sizes.length];
+        double[] logCounts = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            logSizes[i] = -Math.log(sizes[i]);
+            logCounts[i] = Math.log(bestCounts[i]);
+        }
+        dimensions[c] = LineFit.slope(logSizes, logCounts, sizes.length);
+    }
+
+    private void doMultifractal(int width, int height, int depth) {
+        final int numQ = (int) Math.floor((highestQ - lowestQ) / qStep + 1e-9) + 1;
+        double[] q = new double[numQ];
+        for (int k = 0; k < numQ; k++) {
+            q[k] = lowestQ + k * qStep;
+        }
+
+        if (!IntegralImage.fits(width, height, depth)) {
+            IJ.log("\nError: Not enough memory for the summed-area table of the multifractal spectrum ("
+                    + IntegralImage.megabytesNeeded(width, height, depth) + " MB).");
+            return;
+        }
+
+        IJ.showStatus("Estimating multifractal spectrum..");
+        IntegralImage integral = IntegralImage.fromStack(imRef.getStack(), true, threshold);
+        BoxGrids grids = new BoxGrids(getBoxSizes(), numOffsets, width, height, depth);
+        Multifractal spectrum = Multifractal.estimate(integral, grids, q);
+        if (spectrum == null) {
+            IJ.log("\nError: The multifractal spectrum needs at least two box sizes with foreground.");
+            return;
+        }
+
+        ResultsTable table = FitResults.getTable(SPECTRUM_TITLE);
+        for (int k = 0; k < numQ; k++) {
+            table.incrementCounter();
+            table.addLabel(imRef.getTitle());
+            table.addValue("q", q[k]);
+            table.addValue("Dq", spectrum.dq[k]);
+            table.addValue("alpha", spectrum.alpha[k]);
+            table.addValue("f(alpha)", spectrum.f[k]);
+        }
+        FitResults.show(null);
+
+        if (!quiet) {
+            IJ.log("\n" + imRef.getTitle() + ": Multifractal spectrum (q, Dq, alpha, f(alpha)):");
+            for (int k = 0; k < numQ; k++) {
+                IJ.log(IJ.d2s(q[k], 2) + ", " + IJ.d2s(spectrum.dq[k], 4) + ", "
+                        + IJ.d2s(spectrum.alpha[k], 4) + ", " + IJ.d2s(spectrum.f[k], 4));
             }
-            boxSizes.add((long) boxSize);
-            boxCounts.add(bestCount);
+        }
+
+        if (plotGraph) {
+            Plot dq = new Plot("Generalised dimensions", "q", "Dq", q, spectrum.dq);
+            dq.addPoints(q, spectrum.dq, PlotWindow.CIRCLE);
+            dq.draw();
+
+            Plot f = new Plot("Multifractal spectrum", "alpha", "f(alpha)", spectrum.alpha, spectrum.f);
+            f.addPoints(spectrum.alpha, spectrum.f, PlotWindow.CIRCLE);
+            f.draw();
         }
     }
 
     void doPlotGraph(double[] params, double[] boxSizes, double[] boxCountSums) {
+        Plot plot = makePlot(params, boxSizes, boxCountSums, "Slope: " + IJ.d2s(params[1], 4));
+        if (progressPlot != null) {
+            // Replace the provisional plot of a progressive count
+            progressPlot.drawPlot(plot);
+            progressPlot = null;
+        } else {
+            plot.draw();
+        }
+    }
+
+    private Plot makePlot(double[] params, double[] boxSizes, double[] boxCountSums, String label) {
         final int samples = 100;
         float[] px = new float[samples];
         float[] py = new float[samples];
@@ -328,8 +892,8 @@ public class FractalCount_ implements PlugInFilter {
         Plot plot = new Plot("Plot", "-log(box size)", "log(box count)", px, py);
         plot.setLimits(xmin, xmax * 0.9, ymin, ymax * 1.1);
         plot.addPoints(Tools.toFloat(boxSizes), Tools.toFloat(boxCountSums), PlotWindow.CIRCLE);
-        plot.addLabel(0.25, 0.25, "Slope: " + IJ.d2s(params[1], 4));
-        plot.draw();
+        plot.addLabel(0.25, 0.25, label);
+        return plot;
     }
 
     void showAbout() {
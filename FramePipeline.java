@@ -0,0 +1,236 @@
+/*
+ * Counts the frames of a time-lapse stack in three stages connected by
+ * bounded queues: one thread reads the frames from the stack (a virtual
+ * stack reads them from disk here), a pool of workers counts them, and
+ * the calling thread gets the results back in frame order.
+ *
+ * The frame queue holds a few frames, so at most that many plus one per
+ * worker are in memory at any time, however long the stack. When the
+ * workers fall behind the reader waits; when the reader falls behind the
+ * workers wait. Results are small and are kept until the frames before
+ * them are done, so they can be written in order. Esc stops the count.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class FramePipeline {
+
+    /**
+     * Counts one frame. Called from the worker threads.
+     */
+    interface FrameCounter {
+        long[] count(ImageStack frame);
+    }
+
+    /**
+     * Given the counts of each frame, in frame order. Called on the thread
+     * that called run().
+     */
+    interface ResultWriter {
+        void write(int frame, long[] counts);
+    }
+
+    private static final long POLL_MILLIS = 100;
+
+    private static final Frame END_OF_FRAMES = new Frame(-1, null);
+
+    private final ImagePlus imp;
+
+    private final boolean slicesAreFrames;
+
+    private final int numFrames;
+
+    private final int numWorkers;
+
+    private final BlockingQueue<Frame> frames;
+
+    private final BlockingQueue<Result> results;
+
+    private volatile boolean cancelled = false;
+
+    private Throwable failure = null;
+
+    private static final class Frame {
+        final int index;
+
+        final ImageStack stack;
+
+        Frame(int index, ImageStack stack) {
+            this.index = index;
+            this.stack = stack;
+        }
+    }
+
+    private static final class Result {
+        final int index;
+
+        final long[] counts;
+
+        Result(int index, long[] counts) {
+            this.index = index;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Frames are the time points of a hyperstack, with all the z slices of
+     * the current channel, or the slices of a plain stack when
+     * slicesAreFrames is set. At most framesInFlight frames wait to be
+     * counted.
+     */
+    FramePipeline(ImagePlus imp, boolean slicesAreFrames, int numWorkers, int framesInFlight) {
+        this.imp = imp;
+        this.slicesAreFrames = slicesAreFrames;
+        this.numWorkers = numWorkers;
+        numFrames = slicesAreFrames ? imp.getStackSize() : imp.getNFrames();
+        frames = new ArrayBlockingQueue<Frame>(Math.max(1, framesInFlight));
+        results = new ArrayBlockingQueue<Result>(Math.max(1, framesInFlight) + numWorkers);
+    }
+
+    int getNumFrames() {
+        return numFrames;
+    }
+
+    int getFrameDepth() {
+        return slicesAreFrames ? 1 : imp.getNSlices();
+    }
+
+    /**
+     * Counts all frames, giving the results to the writer in order. Returns
+     * false if the count was stopped with Esc; the frames before the first
+     * one not counted have been written.
+     */
+    boolean run(final FrameCounter counter, ResultWriter writer) throws InterruptedException {
+        IJ.resetEscape();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    readFrames();
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+        }, "Frame reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    countFrames(counter);
+                }
+            });
+        }
+
+        // Write the results in frame order as they come in
+        Map<Integer, long[]> pending = new HashMap<Integer, long[]>();
+        int next = 0;
+        int workersDone = 0;
+        try {
+            while (workersDone < numWorkers) {
+                Result result = results.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (IJ.escapePressed()) {
+                    cancelled = true;
+                }
+                if (result == null) {
+                    continue;
+                }
+                if (result.counts == null) {
+                    workersDone++;
+                    continue;
+                }
+                pending.put(result.index, result.counts);
+                while (pending.containsKey(next) && !cancelled) {
+                    writer.write(next, pending.remove(next));
+                    next++;
+                    IJ.showProgress(next, numFrames);
+                }
+            }
+        } finally {
+            // If the writer failed, stop and let the workers finish
+            if (workersDone < numWorkers) {
+                cancelled = true;
+                while (workersDone < numWorkers) {
+                    if (results.take().counts == null) {
+                        workersDone++;
+                    }
+                }
+            }
+            workers.shutdown();
+        }
+        reader.join();
+        IJ.showProgress(1.0);
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("Frame count failed", failure);
+            }
+        }
+        return !cancelled;
+    }
+
+    private void readFrames() throws InterruptedException {
+        final ImageStack source = imp.getStack();
+        final int depth = getFrameDepth();
+        final int channel = imp.getChannel();
+        try {
+            for (int t = 0; t < numFrames && !cancelled; t++) {
+                ImageStack frame = new ImageStack(source.getWidth(), source.getHeight());
+                for (int z = 0; z < depth; z++) {
+                    final int n = slicesAreFrames ? t + 1 : imp.getStackIndex(channel, z + 1, t + 1);
+                    frame.addSlice(null, source.getPixels(n));
+                }
+                frames.put(new Frame(t, frame));
+            }
+        } finally {
+            // One end marker per worker, also when stopped or failed
+            for (int w = 0; w < numWorkers; w++) {
+                frames.put(END_OF_FRAMES);
+            }
+        }
+    }
+
+    private void countFrames(FrameCounter counter) {
+        try {
+            while (true) {
+                Frame frame = frames.take();
+                if (frame == END_OF_FRAMES) {
+                    break;
+                }
+                if (cancelled) {
+                    // Drain the queue so that the reader can finish
+                    continue;
+                }
+                try {
+                    results.put(new Result(frame.index, counter.count(frame.stack)));
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+            results.put(new Result(-1, null));
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+        cancelled = true;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Per-box index of a greylevel image for the surface box counts: for every
+ * box size, the min and max of each box of the grid aligned with the image
+ * corner, and the values at the grid points (the box corners). The image is
+ * read once; the boxes of a size are built from the boxes of the largest
+ * size already built that divides it, or from the pixels if there is none,
+ * with separable min/max reductions. Boxes at the right and bottom edges
+ * are cut off by the image, as in SDBC_.
+ *
+ * All estimators count from the same index, so comparing estimators costs
+ * one pass over the image per box size, not one per estimator. Every count
+ * N(s) is such that the dimension is the slope of log N(s) against -log s:
+ *
+ * - SDBC (Chen et al. 2003, as in SDBC_): 1 + floor((max - min + 1) / s).
+ * - DBC (Sarkar and Chaudhuri 1994): grey levels are cut into boxes of
+ *   height h = s * G / M, counted from the image minimum, and a column
+ *   of boxes has floor(max / h) - floor(min / h) + 1 boxes.
+ * - Relative DBC (Jin et al. 1995): the same box height, but the column
+ *   covers the grey range of the box itself: max(1, ceil((max - min) / h)).
+ * - Triangular prism (Clarke 1986): the surface area A(s) of the prisms
+ *   spanned by the box corners and their mean at the centre, counted as
+ *   A(s) / s^2 boxes.
+ *
+ * Here G is the grey range of the image (max - min + 1) and M the larger
+ * side of the image.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class GreyBoxIndex {
+
+    static final int SDBC = 0;
+
+    static final int DBC = 1;
+
+    static final int RELATIVE_DBC = 2;
+
+    static final int TRIANGULAR_PRISM = 3;
+
+    static final String[] ESTIMATOR_NAMES = {"SDBC", "DBC", "Relative DBC", "Triangular prism"};
+
+    /**
+     * The boxes of one size. Box (i, j) is at index j * columns + i; grid
+     * point (i, j) at j * (columns + 1) + i.
+     */
+    static final class Boxes {
+        final int size;
+
+        final int columns;
+
+        final int rows;
+
+        final float[] min;
+
+        final float[] max;
+
+        final float[] corners;
+
+        Boxes(int size, int columns, int rows) {
+            this.size = size;
+            this.columns = columns;
+            this.rows = rows;
+            min = new float[columns * rows];
+            max = new float[columns * rows];
+            corners = new float[(columns + 1) * (rows + 1)];
+        }
+    }
+
+    private final float[] values;
+
+    private final int width;
+
+    private final int height;
+
+    private final float globalMin;
+
+    private final float globalMax;
+
+    private final Map<Integer, Boxes> bySize = new HashMap<Integer, Boxes>();
+
+    GreyBoxIndex(float[] values, int width, int height) {
+        this.values = values;
+        this.width = width;
+        this.height = height;
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        globalMin = min;
+        globalMax = max;
+    }
+
+    /**
+     * Reads the raw (uncalibrated) pixel values of an 8, 16 or 32-bit
+     * image once.
+     */
+    static GreyBoxIndex fromProcessor(ImageProcessor ip) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final boolean isFloat = ip instanceof FloatProcessor;
+        float[] values = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                values[y * width + x] = isFloat ? ip.getPixelValue(x, y) : ip.getPixel(x, y);
+            }
+        }
+        return new GreyBoxIndex(values, width, height);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * The boxes of the given size, built on first use.
+     */
+    synchronized Boxes getBoxes(int size) {
+        Boxes boxes = bySize.get(size);
+        if (boxes != null) {
+            return boxes;
+        }
+
+        Boxes base = null;
+        for (Boxes built : bySize.values()) {
+            if (size % built.size == 0 && (base == null || built.size > base.size)) {
+                base = built;
+            }
+        }
+        boxes = new Boxes(size, (width + size - 1) / size, (height + size - 1) / size);
+        if (base != null) {
+            reduce(base, boxes);
+        } else {
+            reducePixels(boxes);
+        }
+        for (int j = 0; j <= boxes.rows; j++) {
+            final int y = Math.min(j * size, height - 1);
+            for (int i = 0; i <= boxes.columns; i++) {
+                boxes.corners[j * (boxes.columns + 1) + i] = values[y * width + Math.min(i * size, width - 1)];
+            }
+        }
+        bySize.put(size, boxes);
+        return boxes;
+    }
+
+    private void reducePixels(Boxes boxes) {
+        final int size = boxes.size;
+        final int columns = boxes.columns;
+
+        // Along x into one row of box columns per pixel row, then along y
+        float[] rowMin = new float[columns * height];
+        float[] rowMax = new float[columns * height];
+        for (int y = 0; y < height; y++) {
+            for (int i = 0; i < columns; i++) {
+                final int end = Math.min(width, (i + 1) * size);
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                for (int x = i * size; x < end; x++) {
+                    final float value = values[y * width + x];
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+                rowMin[y * columns + i] = min;
+                rowMax[y * columns + i] = max;
+            }
+        }
+        reduceRows(rowMin, rowMax, size, height, boxes);
+    }
+
+    private static void reduce(Boxes base, Boxes boxes) {
+        final int factor = boxes.size / base.size;
+        final int columns = boxes.columns;
+
+        float[] rowMin = new float[columns * base.rows];
+        float[] rowMax = new float[columns * base.rows];
+        for (int r = 0; r < base.rows; r++) {
+            for (int i = 0; i < columns; i++) {
+                final int end = Math.min(base.columns, (i + 1) * factor);
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                for (int c = i * factor; c < end; c++) {
+                    min = Math.min(min, base.min[r * base.columns + c]);
+                    max = Math.max(max, base.max[r * base.columns + c]);
+                }
+                rowMin[r * columns + i] = min;
+                rowMax[r * columns + i] = max;
+            }
+        }
+        reduceRows(rowMin, rowMax, factor, base.rows, boxes);
+    }
+
+    /**
+     * Reduces rows of box columns, factor rows to a box, into boxes.
+     */
+    private static void reduceRows(float[] rowMin, float[] rowMax, int factor, int numRows, Boxes boxes) {
+        final int columns = boxes.columns;
+        for (int j = 0; j < boxes.rows; j++) {
+            final int end = Math.min(numRows, (j + 1) * factor);
+            for (int i = 0; i < columns; i++) {
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                for (int r = j * factor; r < end; r++) {
+                    min = Math.min(min, rowMin[r * columns + i]);
+                    max = Math.max(max, rowMax[r * columns + i]);
+                }
+                boxes.min[j * columns + i] = min;
+                boxes.max[j * columns + i] = max;
+            }
+        }
+    }
+
+    /**
+     * The count of the given estimator (SDBC, DBC, RELATIVE_DBC or
+     * TRIANGULAR_PRISM) for one box size.
+     */
+    double count(int estimator, int size) {
+        switch (estimator) {
+            case SDBC:
+                return sdbcCount(size);
+            case DBC:
+                return dbcCount(size);
+            case RELATIVE_DBC:
+                return relativeDbcCount(size);
+            case TRIANGULAR_PRISM:
+                return prismCount(size);
+            default:
+                throw new IllegalArgumentException("Unknown estimator " + estimator);
+        }
+    }
+
+    /**
+     * The SDBC count, as in SDBC_.
+     */
+    long sdbcCount(int size) {
+        final Boxes boxes = getBoxes(size);
+        long count = 0;
+        for (int b = 0; b < boxes.min.length; b++) {
+            count += 1 + (int) (((double) boxes.max[b] - boxes.min[b] + 1) / size);
+        }
+        return count;
+    }
+
+    /**
+     * The differential box count.
+     */
+    long dbcCount(int size) {
+        final Boxes boxes = getBoxes(size);
+        final double h = boxHeight(size);
+        long count = 0;
+        for (int b = 0; b < boxes.min.length; b++) {
+            count += (long) Math.floor((boxes.max[b] - globalMin) / h)
+                    - (long) Math.floor((boxes.min[b] - globalMin) / h) + 1;
+        }
+        return count;
+    }
+
+    /**
+     * The relative differential box count.
+     */
+    long relativeDbcCount(int size) {
+        final Boxes boxes = getBoxes(size);
+        final double h = boxHeight(size);
+        long count = 0;
+        for (int b = 0; b < boxes.min.length; b++) {
+            count += Math.max(1, (long) Math.ceil((boxes.max[b] - boxes.min[b]) / h));
+        }
+        return count;
+    }
+
+    /**
+     * The triangular prism surface area, in boxes of size x size. Boxes
+     * cut off by the image edge have their corners on the edge pixels.
+     */
+    double prismCount(int size) {
+        final Boxes boxes = getBoxes(size);
+        final int stride = boxes.columns + 1;
+        double area = 0;
+        for (int j = 0; j < boxes.rows; j++) {
+            final double dy = Math.min((j + 1) * size, height - 1) - j * size;
+            for (int i = 0; i < boxes.columns; i++) {
+                final double dx = Math.min((i + 1) * size, width - 1) - i * size;
+                final double a = boxes.corners[j * stride + i];
+                final double b = boxes.corners[j * stride + i + 1];
+                final double c = boxes.corners[(j + 1) * stride + i + 1];
+                final double d = boxes.corners[(j + 1) * stride + i];
+                final double e = (a + b + c + d) / 4;
+                area += triangle(dx, 0, b - a, dx / 2, dy / 2, e - a)
+                        + triangle(0, dy, c - b, -dx / 2, dy / 2, e - b)
+                        + triangle(-dx, 0, d - c, -dx / 2, -dy / 2, e - c)
+                        + triangle(0, -dy, a - d, dx / 2, -dy / 2, e - d);
+            }
+        }
+        return area / ((double) size * size);
+    }
+
+    /**
+     * Area of the triangle spanned by the vectors u and v.
+     */
+    private static double triangle(double ux, double uy, double uz, double vx, double vy, double vz) {
+        final double cx = uy * vz - uz * vy;
+        final double cy = uz * vx - ux * vz;
+        final double cz = ux * vy - uy * vx;
+        return 0.5 * Math.sqrt(cx * cx + cy * cy + cz * cz);
+    }
+
+    private double boxHeight(int size) {
+        return size * (globalMax - globalMin + 1) / (double) Math.max(width, height);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Estimates the fractal dimension of a 2D greylevel image, interpreted as
+ * a topographic surface, by several estimators at once: SDBC, differential
+ * box counting, relative differential box counting and the triangular
+ * prism method. All of them count from one GreyBoxIndex, so the image is
+ * reduced once per box size however many estimators are chosen.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+
+public class GreyFractalCount_ implements PlugInFilter {
+
+    private static final int AUTO_DIV = 4;
+
+    private static final int AUTO_MIN = 2;
+
+    private ImagePlus imRef;
+
+    private boolean noGo = false;
+
+    // User-changeable defaults:
+    private final boolean[] estimators = {true, true, true, true};
+
+    private boolean autoParam = true;
+
+    private int maxBox = 24;
+
+    private int minBox = AUTO_MIN;
+
+    private double divBox = 1.2;
+
+    private boolean quiet = false;
+
+    public int setup(String arg, ImagePlus imp) {
+        imRef = imp;
+
+        if (arg.equals("about")) {
+            showAbout();
+            return DONE;
+        }
+
+        getParams();
+
+        return DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + NO_CHANGES;
+    }
+
+    private void getParams() {
+        GenericDialog gd = new GenericDialog("Compare greylevel estimators");
+
+        for (int e = 0; e < estimators.length; e++) {
+            gd.addCheckbox(GreyBoxIndex.ESTIMATOR_NAMES[e], estimators[e]);
+        }
+        gd.addCheckbox("Automatic box size", autoParam);
+        gd.addCheckbox("Quiet (no log, for batch macros)", quiet);
+        gd.addNumericField("Start box size", maxBox, 0);
+        gd.addNumericField("Min box size", minBox, 0);
+        gd.addNumericField("Box division factor", divBox, 1);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            noGo = true;
+            return;
+        }
+
+        for (int e = 0; e < estimators.length; e++) {
+            estimators[e] = gd.getNextBoolean();
+        }
+        autoParam = gd.getNextBoolean();
+        quiet = gd.getNextBoolean();
+        maxBox = (int) gd.getNextNumber();
+        minBox = (int) gd.getNextNumber();
+        divBox = gd.getNextNumber();
+
+        if (divBox <= 1) {
+            IJ.log("Box division factor must be larger than 1. Please select another value");
+            noGo = true;
+        }
+        if (!autoParam && minBox < 1) {
+            IJ.log("Min box size must be at least 1. Please select another value");
+            noGo = true;
+        }
+    }
+
+    public void run(ImageProcessor ip) {
+        if (noGo) {
+            return;
+        }
+
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        if (autoParam) {
+            maxBox = Math.max(width, height) / AUTO_DIV;
+            minBox = Math.min(AUTO_MIN, maxBox);
+        }
+        final int[] sizes = FractalCount_.getBoxSizes(maxBox, minBox, divBox);
+        if (sizes.length < 2) {
+            IJ.log("\nError: Fewer than two box sizes!\nMake sure that starting and ending box size and "
+                    + "\nreduction rate allow for at least two box sizes to exist!");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        GreyBoxIndex index = GreyBoxIndex.fromProcessor(ip);
+
+        // Smallest first, so that larger sizes can be built from their divisors
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            index.getBoxes(sizes[i]);
+        }
+
+        double[] fitSizes = new double[sizes.length];
+        double[] logSizes = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            fitSizes[i] = sizes[i];
+            logSizes[i] = -Math.log(sizes[i]);
+        }
+
+        ResultsTable rt = null;
+        for (int e = 0; e < estimators.length; e++) {
+            if (!estimators[e]) {
+                continue;
+            }
+            double[] counts = new double[sizes.length];
+            double[] logCounts = new double[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                counts[i] = index.count(e, sizes[i]);
+                logCounts[i] = Math.log(counts[i]);
+            }
+
+            final String label = imRef.getTitle() + ": " + GreyBoxIndex.ESTIMATOR_NAMES[e];
+            if (!quiet) {
+                IJ.log(label + ": Dimension estimate: "
+                        + IJ.d2s(LineFit.slope(logSizes, logCounts, sizes.length), 4)
+                        + ": Settings: " + maxBox + ":" + minBox + ":" + divBox);
+            }
+            rt = FitResults.add(label, fitSizes, counts);
+        }
+        if (rt != null) {
+            FitResults.show(rt);
+        }
+
+        if (!quiet) {
+            IJ.log("Time used: " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        }
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About GreyFractalCount..",
+                "This plugin compares estimators of the fractal dimension of greylevel images:\n"
+                        + "SDBC, DBC, relative DBC and the triangular prism method.");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Summed-area table (integral image) of a 2D image or 3D stack, giving the
+ * mass of any box in constant time. The table takes 8 bytes per voxel, in
+ * one array, so callers check fits() before building it: 512^3 voxels
+ * already need 1 GB, and an array cannot hold more than about 1290^3.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+class IntegralImage {
+
+    // Longest array that every JVM allows
+    private static final long MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int width;
+
+    private final int height;
+
+    private final int depth;
+
+    private final int rowLength;
+
+    private final int sliceLength;
+
+    // sums[(z * (height + 1) + y) * (width + 1) + x] is the mass of the box
+    // [0, x) x [0, y) x [0, z)
+    private final double[] sums;
+
+    private IntegralImage(int width, int height, int depth) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        rowLength = width + 1;
+        sliceLength = rowLength * (height + 1);
+        final long length = tableLength(width, height, depth);
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Image too large for a summed-area table: "
+                    + width + " x " + height + " x " + depth);
+        }
+        sums = new double[(int) length];
+    }
+
+    private static long tableLength(int width, int height, int depth) {
+        return (long) (width + 1) * (height + 1) * (depth + 1);
+    }
+
+    /**
+     * Megabytes taken by the table of an image of the given size.
+     */
+    static long megabytesNeeded(int width, int height, int depth) {
+        return (8 * tableLength(width, height, depth)) >> 20;
+    }
+
+    /**
+     * Whether the table of an image of the given size fits in an array and
+     * in the memory that is still free.
+     */
+    static boolean fits(int width, int height, int depth) {
+        final long length = tableLength(width, height, depth);
+        final Runtime runtime = Runtime.getRuntime();
+        final long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return length <= MAX_LENGTH && 8 * length <= free;
+    }
+
+    /**
+     * Builds the table of a stack. With binary set, a pixel has mass 1 if
+     * its value is at least threshold and 0 otherwise; else its mass is
+     * its value.
+     */
+    static IntegralImage fromStack(ImageStack stack, boolean binary, double threshold) {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int depth = stack.getSize();
+        IntegralImage image = new IntegralImage(width, height, depth);
+        final double[] sums = image.sums;
+
+        for (int z = 0; z < depth; z++) {
+            final ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int y = 0; y < height; y++) {
+                double rowSum = 0;
+                final int i0 = ((z + 1) * (height + 1) + y + 1) * image.rowLength + 1;
+                for (int x = 0; x < width; x++) {
+                    final float value = ip.getf(x + y * width);
+                    rowSum += binary ? (value >= threshold ? 1 : 0) : value;
+                    final int i = i0 + x;
+                    // add the column above and the slice before
+                    sums[i] = rowSum + sums[i - image.rowLength] + sums[i - image.sliceLength]
+                            - sums[i - image.rowLength - image.sliceLength];
+                }
+            }
+        }
+        return image;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Mass of the box [x, x + sizeX) x [y, y + sizeY) x [z, z + sizeZ).
+     * The box must lie inside the image.
+     */
+    double boxSum(int x, int y, int z, int sizeX, int sizeY, int sizeZ) {
+        final int i000 = (z * (height + 1) + y) * rowLength + x;
+        final int dx = sizeX;
+        final int dy = sizeY * rowLength;
+        final int dz = sizeZ * sliceLength;
+        return sums[i000 + dx + dy + dz] - sums[i000 + dy + dz] - sums[i000 + dx + dz] + sums[i000 + dz]
+                - sums[i000 + dx + dy] + sums[i000 + dy] + sums[i000 + dx] - sums[i000];
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Estimates the gliding-box lacunarity of 2D and 3D images, binary or
+ * greyscale.
+ *
+ * For each box size r, a box is placed at every position in the image and
+ * its mass M is taken from a summed-area table. The lacunarity is
+ * L(r) = E[M^2] / E[M]^2 over all positions. Box sizes are computed in
+ * parallel.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
+import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Lacunarity_ implements PlugInFilter {
+
+    private ImagePlus imRef;
+
+    private boolean noGo = false;
+
+    private static final int AUTO_DIV = 4;
+
+    // One row per box size, in the format of the box counts
+    private static final String CURVE_TITLE = "Lacunarity curves";
+
+    // User-changeable defaults:
+    private boolean plotGraph = true;
+
+    private boolean showPlotCoordinates = false;
+
+    private boolean quiet = false;
+
+    private boolean greyscale = false;
+
+    private boolean autoParam = true;
+
+    private double threshold = 70;
+
+    private int maxBox = 24;
+
+    private int minBox = 1;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    public int setup(String arg, ImagePlus imp) {
+        imRef = imp;
+
+        if (arg.equals("about")) {
+            showAbout();
+            return DONE;
+        }
+
+        getParams();
+
+        return DOES_8G + DOES_16 + DOES_32;
+    }
+
+    private void getParams() {
+        GenericDialog gd = new GenericDialog("Calculate lacunarity");
+
+        gd.addCheckbox("Plot results", plotGraph);
+        gd.addCheckbox("Show plot coordinates", showPlotCoordinates);
+        gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
+        gd.addCheckbox("Greyscale mass (no threshold)", greyscale);
+        gd.addCheckbox("Automatic max box size", autoParam);
+        gd.addMessage("");
+        gd.addNumericField("Threshold", threshold, 0);
+        gd.addNumericField("Max box size", maxBox, 0);
+        gd.addNumericField("Min box size", minBox, 0);
+        gd.addNumericField("Threads", numThreads, 0);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            if (imRef != null) {
+                imRef.unlock();
+                imRef = null;
+            }
+            noGo = true;
+            return;
+        }
+
+        plotGraph = gd.getNextBoolean();
+        showPlotCoordinates = gd.getNextBoolean();
+        quiet = gd.getNextBoolean();
+        greyscale = gd.getNextBoolean();
+        if (quiet) {
+            plotGraph = false;
+            showPlotCoordinates = false;
+        }
+        autoParam = gd.getNextBoolean();
+
+        threshold = gd.getNextNumber();
+        maxBox = (int) gd.getNextNumber();
+        minBox = (int) gd.getNextNumber();
+        numThreads = (int) gd.getNextNumber();
+        if (minBox < 1 || numThreads < 1) {
+            IJ.log("Min box size and number of threads must be at least 1. Please select other values");
+            noGo = true;
+        }
+    }
+
+    public void run(ImageProcessor ip) {
+        if (noGo) {
+            return;
+        }
+
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final int depth = imRef.getStackSize();
+
+        // Boxes are squares in 2D and cubes in 3D
+        final int limit = depth > 1 ? Math.min(width, Math.min(height, depth)) : Math.min(width, height);
+        if (autoParam) {
+            maxBox = Math.max(width, Math.max(height, depth)) / AUTO_DIV;
+        }
+        maxBox = Math.min(maxBox, limit);
+        if (maxBox < minBox) {
+            IJ.log("\nError: No boxes!\nMake sure that the max box size is at least the min box size"
+                    + "\nand fits inside the image.");
+            imRef.unlock();
+            return;
+        }
+
+        if (!IntegralImage.fits(width, height, depth)) {
+            IJ.log("\nError: Not enough memory for the summed-area table of this image ("
+                    + IntegralImage.megabytesNeeded(width, height, depth) + " MB).");
+            imRef.unlock();
+            return;
+        }
+
+        IJ.showStatus("Estimating lacunarity..");
+        final IntegralImage integral = IntegralImage.fromStack(imRef.getStack(), !greyscale, threshold);
+
+        final int[] sizes = new int[maxBox - minBox + 1];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = minBox + i;
+        }
+        double[] lacunarity;
+        try {
+            lacunarity = lacunarity(integral, sizes, numThreads);
+        } catch (Exception e) {
+            IJ.log("\nError: Lacunarity estimate failed: " + e);
+            imRef.unlock();
+            return;
+        }
+
+        List<Double> xList = new ArrayList<Double>();
+        List<Double> yList = new ArrayList<Double>();
+        for (int i = 0; i < sizes.length; i++) {
+            // An empty image has no lacunarity
+            if (!Double.isNaN(lacunarity[i])) {
+                xList.add((double) sizes[i]);
+                yList.add(lacunarity[i]);
+            }
+        }
+        if (xList.isEmpty()) {
+            IJ.log("\nNo mass in image. Lacunarity not defined."
+                    + "\nThis can be caused by an empty image or a"
+                    + "\n wrong threshold value.");
+            imRef.unlock();
+            return;
+        }
+
+        if (showPlotCoordinates) {
+            IJ.log("\nBox size + lacunarity pairs:");
+            for (int i = 0; i < xList.size(); i++) {
+                IJ.log(xList.get(i).intValue() + ", " + IJ.d2s(yList.get(i), 6));
+            }
+            IJ.log("");
+        }
+
+        double[] logSizes = new double[xList.size()];
+        double[] logLacunarity = new double[yList.size()];
+        for (int i = 0; i < logSizes.length; i++) {
+            logSizes[i] = Math.log(xList.get(i));
+            logLacunarity[i] = Math.log(yList.get(i));
+        }
+
+        CurveFitter cf = new CurveFitter(logSizes, logLacunarity);
+        cf.doFit(CurveFitter.STRAIGHT_LINE);
+        double[] p = cf.getParams();
+        showResults(xList, yList, p[1]);
+        if (!quiet) {
+            IJ.log(imRef.getTitle() + ": Lacunarity at box size " + xList.get(0).intValue() + ": "
+                    + IJ.d2s(yList.get(0), 4) + ": Slope: " + IJ.d2s(p[1], 4)
+                    + ": Settings: " + maxBox + ":" + minBox + (greyscale ? ":greyscale" : ":" + threshold));
+        }
+
+        if (plotGraph) {
+            doPlotGraph(p, logSizes, logLacunarity);
+        }
+
+        imRef.unlock();
+    }
+
+    /**
+     * Adds a row with the lacunarity at the smallest box and the slope to
+     * the Results table, and a row per box size to the lacunarity table.
+     */
+    private void showResults(List<Double> xList, List<Double> yList, double slope) {
+        final String label = imRef.getTitle();
+        ResultsTable rt = ResultsTable.getResultsTable();
+        rt.incrementCounter();
+        rt.addLabel(label);
+        rt.addValue("Lacunarity", yList.get(0));
+        rt.addValue("Slope", slope);
+        rt.addValue("Box sizes", xList.size());
+        rt.addValue("Max box", xList.get(xList.size() - 1));
+        rt.addValue("Min box", xList.get(0));
+
+        double[] sizes = new double[xList.size()];
+        double[] lacunarity = new double[yList.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = xList.get(i);
+            lacunarity[i] = yList.get(i);
+        }
+        FitResults.addCurve(CURVE_TITLE, label, "Box size", sizes, "Lacunarity", lacunarity);
+        FitResults.show(rt);
+    }
+
+    /**
+     * Returns the gliding-box lacunarity for each box size, or NaN where
+     * the image has no mass. The sizes are spread over the given number of
+     * threads.
+     */
+    static double[] lacunarity(final IntegralImage integral, int[] sizes, int numThreads)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Double>> results = new ArrayList<Future<Double>>();
+            for (final int boxSize : sizes) {
+                results.add(executor.submit(new Callable<Double>() {
+                    public Double call() {
+                        return lacunarity(integral, boxSize);
+                    }
+                }));
+            }
+
+            double[] lacunarity = new double[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                lacunarity[i] = results.get(i).get();
+                IJ.showProgress(i + 1, sizes.length);
+            }
+            return lacunarity;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static double lacunarity(IntegralImage integral, int boxSize) {
+        final int sizeZ = integral.getDepth() > 1 ? boxSize : 1;
+        final int xMax = integral.getWidth() - boxSize;
+        final int yMax = integral.getHeight() - boxSize;
+        final int zMax = integral.getDepth() - sizeZ;
+
+        double sum = 0, sumSquares = 0;
+        long n = 0;
+        for (int z = 0; z <= zMax; z++) {
+            for (int y = 0; y <= yMax; y++) {
+                for (int x = 0; x <= xMax; x++) {
+                    final double mass = integral.boxSum(x, y, z, boxSize, boxSize, sizeZ);
+                    sum += mass;
+                    sumSquares += mass * mass;
+                }
+            }
+            n += (long) (xMax + 1) * (yMax + 1);
+        }
+        if (sum == 0) {
+            return Double.NaN;
+        }
+        return n * sumSquares / (sum * sum);
+    }
+
+    void doPlotGraph(double[] params, double[] logSizes, double[] logLacunarity) {
+        final int samples = 100;
+        float[] px = new float[samples];
+        float[] py = new float[samples];
+        double[] a = Tools.getMinMax(logSizes);
+        double xmin = a[0], xmax = a[1];
+
+        a = Tools.getMinMax(logLacunarity);
+        double ymin = a[0], ymax = a[1];
+        final double inc = (xmax - xmin) / ((double) samples - 1);
+        double tmp = xmin;
+
+        for (int i = 0; i < samples; i++) {
+            px[i] = (float) tmp;
+            tmp += inc;
+        }
+        for (int i = 0; i < samples; i++) {
+            py[i] = (float) CurveFitter.f(CurveFitter.STRAIGHT_LINE, params, px[i]);
+        }
+        a = Tools.getMinMax(py);
+        ymin = Math.min(ymin, a[0]);
+        ymax = Math.max(ymax, a[1]);
+
+        Plot plot = new Plot("Plot", "log(box size)", "log(lacunarity)", px, py);
+        plot.setLimits(xmin, xmax, ymin, ymax * 1.1);
+        plot.addPoints(Tools.toFloat(logSizes), Tools.toFloat(logLacunarity), PlotWindow.CIRCLE);
+        plot.addLabel(0.25, 0.25, "Slope: " + IJ.d2s(params[1], 4));
+        plot.draw();
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About Lacunarity..",
+                "This plugin calculates the gliding-box lacunarity \n "
+                        + " of 2D and 3D binary and greyscale images\n.");
+    }
+
+}
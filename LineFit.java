@@ -0,0 +1,109 @@
+/*
+ * Least-squares straight line fits on primitive arrays, without allocating.
+ * Used where many lines are fitted, so that CurveFitter is not needed.
+ *
+ * Free Software in the Public domain.
+ */
+
+class LineFit {
+
+    private LineFit() {
+    }
+
+    /**
+     * Slope of the least-squares line through the first n points.
+     */
+    static double slope(double[] x, double[] y, int n) {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+        final double meanX = sumX / n, meanY = sumY / n;
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < n; i++) {
+            final double dx = x[i] - meanX;
+            sxx += dx * dx;
+            sxy += dx * (y[i] - meanY);
+        }
+        return sxy / sxx;
+    }
+
+    /**
+     * Slope of the least-squares line through the points
+     * (x[index[i]], y[index[i]]), i = 0 .. n - 1.
+     */
+    static double slope(double[] x, double[] y, int[] index, int n) {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[index[i]];
+            sumY += y[index[i]];
+        }
+        final double meanX = sumX / n, meanY = sumY / n;
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < n; i++) {
+            final double dx = x[index[i]] - meanX;
+            sxx += dx * dx;
+            sxy += dx * (y[index[i]] - meanY);
+        }
+        return sxy / sxx;
+    }
+
+    /**
+     * Coefficient of determination of the least-squares line through the
+     * first n points.
+     */
+    static double rSquared(double[] x, double[] y, int n) {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+        final double meanX = sumX / n, meanY = sumY / n;
+        double sxx = 0, sxy = 0, syy = 0;
+        for (int i = 0; i < n; i++) {
+            final double dx = x[i] - meanX, dy = y[i] - meanY;
+            sxx += dx * dx;
+            sxy += dx * dy;
+            syy += dy * dy;
+        }
+        return syy == 0 ? 1 : sxy * sxy / (sxx * syy);
+    }
+
+    /**
+     * Intercept of the least-squares line through the first n points.
+     */
+    static double intercept(double[] x, double[] y, int n) {
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+        return (sumY - slope(x, y, n) * sumX) / n;
+    }
+
+    /**
+     * Standard error of the slope of the least-squares line through the
+     * first n points, from the residuals. NaN with fewer than three points.
+     */
+    static double slopeStandardError(double[] x, double[] y, int n) {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+        final double meanX = sumX / n, meanY = sumY / n;
+        final double slope = slope(x, y, n);
+        double sxx = 0, sumSquares = 0;
+        for (int i = 0; i < n; i++) {
+            final double dx = x[i] - meanX;
+            final double r = y[i] - meanY - slope * dx;
+            sxx += dx * dx;
+            sumSquares += r * r;
+        }
+        return Math.sqrt(sumSquares / (n - 2) / sxx);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Re-runs an estimate in the background whenever an image is updated, for
+ * live results while editing. Updates that arrive while the estimate runs
+ * are merged into a single new run. When the image is closed, the per-box
+ * state kept for it is dropped.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class LiveUpdate implements ImageListener, Runnable {
+
+    private static final Map<Integer, LiveUpdate> updates = new HashMap<Integer, LiveUpdate>();
+
+    private final ImagePlus imp;
+
+    private final Runnable task;
+
+    private boolean pending = false;
+
+    private boolean stopped = false;
+
+    private LiveUpdate(ImagePlus imp, Runnable task) {
+        this.imp = imp;
+        this.task = task;
+    }
+
+    /**
+     * Runs task after every update of imp, until the image is closed. Any
+     * earlier live update of the image is stopped.
+     */
+    static synchronized void start(ImagePlus imp, Runnable task) {
+        stop(imp);
+        LiveUpdate update = new LiveUpdate(imp, task);
+        updates.put(imp.getID(), update);
+        ImagePlus.addImageListener(update);
+
+        Thread thread = new Thread(update, "Live fractal dimension of " + imp.getTitle());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized void stop(ImagePlus imp) {
+        LiveUpdate update = updates.remove(imp.getID());
+        if (update != null) {
+            ImagePlus.removeImageListener(update);
+            synchronized (update) {
+                update.stopped = true;
+                update.notifyAll();
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (!pending && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                pending = false;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                IJ.log("Live update failed: " + e);
+            }
+        }
+    }
+
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp) {
+            stop(imp);
+            // The per-box state of a closed image can never be used again
+            BoxOccupancyState.remove(imp.getID());
+            SurfaceBoxState.remove(imp.getID());
+        }
+    }
+
+    public synchronized void imageUpdated(ImagePlus imp) {
+        if (imp == this.imp) {
+            pending = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Maps the local fractal dimension of a 2D image: for every pixel, the
+ * dimension is estimated from the box counts in a square window around it,
+ * and written to a new 32-bit image.
+ *
+ * The boxes of each size form a fixed grid over the image, and each box
+ * gets a count once: 1 if it holds foreground (binary box count), or the
+ * SDBC count of its column (maps, see MapFractalCount_). The count of a
+ * window is the sum over the boxes it overlaps, each weighted by the part of
+ * the box inside the window, so that a filled window counts (2r + 1)^2 / s^2
+ * at every box size s. As the window moves along a row, and from row to row,
+ * the sums over the boxes wholly inside it are updated with the box columns
+ * and rows that enter and leave it, instead of being summed again; the edge
+ * boxes are added by their overlap. Rows are split into bands that are
+ * processed in parallel.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LocalFractalMap_ implements PlugInFilter {
+
+    private static final String[] ESTIMATORS = {"Binary box count", "SDBC (maps)"};
+
+    private static final int MIN_BOX = 2;
+
+    private static final double SIZE_FACTOR = 1.5;
+
+    private ImagePlus imRef;
+
+    private boolean noGo = false;
+
+    // User-changeable defaults:
+    private int estimator = 0;
+
+    private int radius = 16;
+
+    private double threshold = 70;
+
+    private double zScale = 1.0;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private boolean quiet = false;
+
+    public int setup(String arg, ImagePlus imp) {
+        imRef = imp;
+
+        if (arg.equals("about")) {
+            showAbout();
+            return DONE;
+        }
+
+        getParams();
+
+        return DOES_8G + DOES_16 + DOES_32 + NO_CHANGES;
+    }
+
+    private void getParams() {
+        GenericDialog gd = new GenericDialog("Local fractal dimension");
+
+        gd.addChoice("Estimator", ESTIMATORS, ESTIMATORS[estimator]);
+        gd.addNumericField("Window radius", radius, 0);
+        gd.addNumericField("Threshold (binary)", threshold, 0);
+        gd.addNumericField("Scale z-axis by (SDBC)", zScale, 1);
+        gd.addNumericField("Threads", numThreads, 0);
+        gd.addCheckbox("Quiet (no status, for batch macros)", quiet);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            noGo = true;
+            return;
+        }
+
+        estimator = gd.getNextChoiceIndex();
+        radius = (int) gd.getNextNumber();
+        threshold = gd.getNextNumber();
+        zScale = gd.getNextNumber();
+        numThreads = (int) gd.getNextNumber();
+        quiet = gd.getNextBoolean();
+        if (boxSizes(radius).length < 2 || numThreads < 1) {
+            IJ.log("The window radius must be at least 4 and the number of threads at least 1."
+                    + " Please select other values");
+            noGo = true;
+        }
+    }
+
+    /**
+     * Box sizes from 2 up to the window radius, about SIZE_FACTOR apart.
+     */
+    static int[] boxSizes(int radius) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (double size = MIN_BOX; size <= radius; size *= SIZE_FACTOR) {
+            if (sizes.isEmpty() || (int) size != sizes.get(sizes.size() - 1)) {
+                sizes.add((int) size);
+            }
+        }
+        int[] result = new int[sizes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizes.get(i);
+        }
+        return result;
+    }
+
+    public void run(ImageProcessor ip) {
+        if (noGo) {
+            return;
+        }
+
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final boolean binary = estimator == 0;
+
+        if (!quiet) {
+            IJ.showStatus("Mapping local dimension..");
+        }
+        long startTime = System.currentTimeMillis();
+
+        float[] values = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                values[x + y * width] = binary ? ip.getf(x + y * width) : ip.getPixelValue(x, y);
+            }
+        }
+
+        final int[] sizes = boxSizes(radius);
+        int[][] boxCounts = new int[sizes.length][];
+        for (int k = 0; k < sizes.length; k++) {
+            boxCounts[k] = boxCounts(values, width, height, sizes[k], binary, threshold, zScale);
+        }
+
+        float[] map;
+        try {
+            map = localDimension(boxCounts, sizes, width, height, radius, numThreads);
+        } catch (Exception e) {
+            IJ.log("\nError: Local dimension failed: " + e);
+            return;
+        }
+
+        ImagePlus result = new ImagePlus("Local dimension of " + imRef.getTitle(),
+                new FloatProcessor(width, height, map, null));
+        result.getProcessor().resetMinAndMax();
+        result.show();
+        showResults(map);
+
+        if (!quiet) {
+            IJ.showStatus("Local dimension done in " + (System.currentTimeMillis() - startTime) / 1000.0
+                    + " seconds");
+        }
+    }
+
+    /**
+     * Adds a row with the mean, standard deviation and range of the local
+     * dimension over the pixels that have one to the Results table.
+     */
+    private void showResults(float[] map) {
+        double sum = 0, sumSquares = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        int n = 0;
+        for (int i = 0; i < map.length; i++) {
+            if (!Float.isNaN(map[i])) {
+                sum += map[i];
+                sumSquares += (double) map[i] * map[i];
+                min = Math.min(min, map[i]);
+                max = Math.max(max, map[i]);
+                n++;
+            }
+        }
+        final double mean = n > 0 ? sum / n : Double.NaN;
+
+        ResultsTable rt = ResultsTable.getResultsTable();
+        rt.incrementCounter();
+        rt.addLabel(imRef.getTitle() + ": " + ESTIMATORS[estimator]);
+        rt.addValue("Mean dimension", mean);
+        rt.addValue("SD", n > 1 ? Math.sqrt(Math.max(0, (sumSquares - n * mean * mean) / (n - 1))) : Double.NaN);
+        rt.addValue("Min dimension", n > 0 ? min : Double.NaN);
+        rt.addValue("Max dimension", n > 0 ? max : Double.NaN);
+        rt.addValue("Mapped pixels", n);
+        rt.addValue("Window radius", radius);
+        FitResults.show(rt);
+    }
+
+    /**
+     * Count of each box of the grid of the given size, row by row.
+     */
+    static int[] boxCounts(float[] values, int width, int height, int boxSize,
+                           boolean binary, double threshold, double zScale) {
+        final int boxesX = (width + boxSize - 1) / boxSize;
+        final int boxesY = (height + boxSize - 1) / boxSize;
+        int[] counts = new int[boxesX * boxesY];
+        double[] boxMin = new double[boxesX];
+        double[] boxMax = new double[boxesX];
+
+        for (int by = 0; by < boxesY; by++) {
+            Arrays.fill(boxMin, Double.POSITIVE_INFINITY);
+            Arrays.fill(boxMax, Double.NEGATIVE_INFINITY);
+            for (int y = by * boxSize; y < Math.min(height, (by + 1) * boxSize); y++) {
+                final int yPart = y * width;
+                for (int x = 0; x < width; x++) {
+                    final double zValue = binary ? values[x + yPart] : zScale * values[x + yPart];
+                    final int bx = x / boxSize;
+                    if (zValue < boxMin[bx])
+                        boxMin[bx] = zValue;
+                    if (zValue > boxMax[bx])
+                        boxMax[bx] = zValue;
+                }
+            }
+            for (int bx = 0; bx < boxesX; bx++) {
+                if (binary) {
+                    counts[by * boxesX + bx] = boxMax[bx] >= threshold ? 1 : 0;
+                } else {
+                    counts[by * boxesX + bx] = 1 + (int) ((boxMax[bx] - boxMin[bx] + 1) / boxSize);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Fits the dimension to the window counts around every pixel. Pixels
+     * whose window is empty at some box size get NaN.
+     */
+    static float[] localDimension(final int[][] boxCounts, final int[] sizes, final int width, final int height,
+                                  final int radius, int numThreads) throws Exception {
+        final float[] map = new float[width * height];
+
+        // The x of the fit is the same for every pixel
+        final double[] logSize = new double[sizes.length];
+        double mean = 0;
+        for (int k = 0; k < sizes.length; k++) {
+            logSize[k] = -Math.log(sizes[k]);
+            mean += logSize[k];
+        }
+        mean /= sizes.length;
+        final double[] weight = new double[sizes.length];
+        double sxx = 0;
+        for (int k = 0; k < sizes.length; k++) {
+            weight[k] = logSize[k] - mean;
+            sxx += weight[k] * weight[k];
+        }
+        for (int k = 0; k < sizes.length; k++) {
+            weight[k] /= sxx;
+        }
+
+        final int bandHeight = Math.max(1, height / (4 * numThreads));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> bands = new ArrayList<Future<?>>();
+            for (int y0 = 0; y0 < height; y0 += bandHeight) {
+                final int bandStart = y0;
+                final int bandEnd = Math.min(height, y0 + bandHeight);
+                bands.add(executor.submit(new Runnable() {
+                    public void run() {
+                        mapBand(boxCounts, sizes, weight, width, height, radius, bandStart, bandEnd, map);
+                    }
+                }));
+            }
+            for (int i = 0; i < bands.size(); i++) {
+                bands.get(i).get();
+                IJ.showProgress(i + 1, bands.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return map;
+    }
+
+    private static void mapBand(int[][] boxCounts, int[] sizes, double[] weight, int width, int height,
+                                int radius, int bandStart, int bandEnd, float[] map) {
+        final int numSizes = sizes.length;
+
+        // Per size: sum over the box rows wholly in the window, for each box
+        // column, and the column counts with the edge rows added by overlap
+        long[][] columnSums = new long[numSizes][];
+        double[][] columns = new double[numSizes][];
+        int[] firstRow = new int[numSizes];
+        int[] lastRow = new int[numSizes];
+        double[] windowCounts = new double[numSizes];
+        int[] firstColumn = new int[numSizes];
+        int[] lastColumn = new int[numSizes];
+
+        for (int k = 0; k < numSizes; k++) {
+            final int boxSize = sizes[k];
+            final int boxesX = (width + boxSize - 1) / boxSize;
+            columnSums[k] = new long[boxesX];
+            columns[k] = new double[boxesX];
+            firstRow[k] = Math.max(0, bandStart - radius) / boxSize + 1;
+            lastRow[k] = firstRow[k] - 1;
+        }
+
+        for (int y = bandStart; y < bandEnd; y++) {
+            // Move the window rows down, adding and removing whole box rows
+            final int top = Math.max(0, y - radius);
+            final int bottom = Math.min(height - 1, y + radius);
+            for (int k = 0; k < numSizes; k++) {
+                final int boxSize = sizes[k];
+                final int[] counts = boxCounts[k];
+                final long[] sums = columnSums[k];
+                final int boxesX = sums.length;
+                final int topRow = top / boxSize;
+                final int bottomRow = bottom / boxSize;
+                while (lastRow[k] < bottomRow - 1) {
+                    lastRow[k]++;
+                    for (int bx = 0; bx < boxesX; bx++) {
+                        sums[bx] += counts[lastRow[k] * boxesX + bx];
+                    }
+                }
+                while (firstRow[k] < topRow + 1) {
+                    for (int bx = 0; bx < boxesX; bx++) {
+                        sums[bx] -= counts[firstRow[k] * boxesX + bx];
+                    }
+                    firstRow[k]++;
+                }
+
+                final double[] column = columns[k];
+                final double topWeight = overlap(topRow, top, bottom, boxSize);
+                final double bottomWeight = bottomRow > topRow ? overlap(bottomRow, top, bottom, boxSize) : 0;
+                for (int bx = 0; bx < boxesX; bx++) {
+                    column[bx] = sums[bx] + topWeight * counts[topRow * boxesX + bx]
+                            + bottomWeight * counts[bottomRow * boxesX + bx];
+                }
+                windowCounts[k] = 0;
+                firstColumn[k] = 1;
+                lastColumn[k] = 0;
+            }
+
+            final int yPart = y * width;
+            for (int x = 0; x < width; x++) {
+                // Move the window right, adding and removing box columns
+                final int left = Math.max(0, x - radius);
+                final int right = Math.min(width - 1, x + radius);
+                double slope = 0;
+                boolean empty = false;
+                for (int k = 0; k < numSizes; k++) {
+                    final int boxSize = sizes[k];
+                    final double[] column = columns[k];
+                    final int leftColumn = left / boxSize;
+                    final int rightColumn = right / boxSize;
+                    while (lastColumn[k] < rightColumn - 1) {
+                        windowCounts[k] += column[++lastColumn[k]];
+                    }
+                    while (firstColumn[k] < leftColumn + 1) {
+                        windowCounts[k] -= column[firstColumn[k]++];
+                    }
+                    double count = windowCounts[k] + overlap(leftColumn, left, right, boxSize) * column[leftColumn];
+                    if (rightColumn > leftColumn) {
+                        count += overlap(rightColumn, left, right, boxSize) * column[rightColumn];
+                    }
+                    if (count <= 0) {
+                        empty = true;
+                    } else {
+                        slope += weight[k] * Math.log(count);
+                    }
+                }
+                map[x + yPart] = empty ? Float.NaN : (float) slope;
+            }
+        }
+    }
+
+    /**
+     * Fraction of box b, of the given size, that lies between first and
+     * last (inclusive).
+     */
+    private static double overlap(int b, int first, int last, int boxSize) {
+        final int start = Math.max(first, b * boxSize);
+        final int end = Math.min(last, (b + 1) * boxSize - 1);
+        return (end - start + 1) / (double) boxSize;
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About LocalFractalMap..",
+                "This plugin maps the local fractal dimension of 2D images,\n"
+                        + "binary or maps, in a window around each pixel.");
+    }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Estimates the fractal dimension of a 3D greylevel stack, interpreted
+ * as a hypersurface: the intensity over (x, y, z).
+ * This extends the SDBC algorithm of MapFractalCount_ to cubic boxes,
+ * with a column of boxes of the same size stacked over each cube.
+ *
+ * The min and max of the cubes of a grid are found separably: along x
+ * within each row, then over the rows of a block row, then over the
+ * slices of a block. The slices are read once per grid, for all z
+ * translations at the same time, and block rows are counted in parallel.
+ * Values are calibrated, and the subgraph reaches down to the smallest
+ * calibrated value unscaled, as in MapFractalCount_.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.gui.PlotWindow;
+import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MapFractalCount3D_ implements PlugInFilter {
+
+	ImagePlus imRef;
+
+	boolean noGo = false;
+
+	final int autoDiv = 4;
+
+	final int autoMin = 2;
+
+	// User-changeable defaults :
+	boolean plotGraph = false;
+
+	boolean verboseOutput = false;
+
+	boolean quiet = false;
+
+	int maxBox = 24;
+
+	int minBox = 2;
+
+	double divBox = 1.2;
+
+	int numOffsets = 1;
+
+	double zScale = 1.0;
+
+	boolean subGraph = true;
+
+	boolean autoParam = true;
+
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	public int setup(String arg, ImagePlus imp) {
+		imRef = imp;
+		if (imp == null)
+			noGo = true;
+
+		if (arg.equals("about")) {
+			showAbout();
+			return DONE;
+		}
+
+		getParams();
+		if (!noGo) {
+			IJ.showStatus("Estimating dimension..");
+			if (!quiet)
+				IJ.write("Estimating dimension..");
+		}
+
+		return DOES_8G + DOES_16 + DOES_32 + NO_CHANGES;
+	}
+
+	private void getParams() {
+		GenericDialog gd = new GenericDialog("Calculate fractal dimension of volume");
+
+		gd.addCheckbox("Plot results", plotGraph);
+		gd.addCheckbox("Include subgraph (volume)", subGraph);
+		gd.addCheckbox("Verbose output", verboseOutput);
+		gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
+		gd.addCheckbox("Automatic box size", autoParam);
+		gd.addMessage("");
+		gd.addNumericField("Scale intensity by", zScale, 1);
+		gd.addNumericField("Number of translations", numOffsets, 0);
+		gd.addNumericField("Start box size", maxBox, 0);
+		gd.addNumericField("Min box size", minBox, 0);
+		gd.addNumericField("Box division factor", divBox, 1);
+		gd.addNumericField("Threads", numThreads, 0);
+
+		gd.showDialog();
+
+		if (gd.wasCanceled()) {
+			if (imRef != null)
+				imRef.unlock();
+			noGo = true;
+		}
+
+		plotGraph = gd.getNextBoolean();
+		subGraph = gd.getNextBoolean();
+		verboseOutput = gd.getNextBoolean();
+		quiet = gd.getNextBoolean();
+		if (quiet) {
+			plotGraph = false;
+			verboseOutput = false;
+		}
+		autoParam = gd.getNextBoolean();
+		zScale = gd.getNextNumber();
+
+		numOffsets = (int) gd.getNextNumber();
+		if (numOffsets < 1) {
+			IJ.write("Number of offsets must be at least 1. Please select another value.");
+			noGo = true;
+		}
+		maxBox = (int) gd.getNextNumber();
+		minBox = (int) gd.getNextNumber();
+		if (!autoParam && minBox < 1) {
+			IJ.write("Min box size must be at least 1. Please select another value.");
+			noGo = true;
+		}
+		divBox = gd.getNextNumber();
+		if (divBox <= 1) {
+			IJ.write("Box division factor must be larger than 1. Please select another value.");
+			noGo = true;
+		}
+		numThreads = (int) gd.getNextNumber();
+		if (numThreads < 1) {
+			IJ.write("Number of threads must be at least 1. Please select another value.");
+			noGo = true;
+		}
+	}
+
+	public void run(ImageProcessor ip) {
+		if (noGo)
+			return;
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			// Fetch data
+			final ImageStack stack = imRef.getStack();
+			final int width = stack.getWidth();
+			final int height = stack.getHeight();
+			final int depth = stack.getSize();
+
+			if (autoParam) {
+				maxBox = Math.max(width, Math.max(height, depth)) / autoDiv;
+				minBox = autoMin;
+			}
+
+			Object[] slices = new Object[depth];
+			for (int z = 0; z < depth; z++)
+				slices[z] = stack.getPixels(z + 1);
+
+			// Calibrated values, as ImageProcessor.getPixelValue
+			final float[] cTable = ip.getCalibrationTable();
+
+			double min = 0;
+			if (subGraph)
+				min = minValue(slices, width, height, cTable);
+
+			long startTime = System.currentTimeMillis();
+			ArrayList<Double> xList = new ArrayList<Double>();
+			ArrayList<Double> yList = new ArrayList<Double>();
+
+			for (int boxSize = maxBox; boxSize >= minBox; boxSize /= divBox) {
+				final int increment = Math.max(1, boxSize / numOffsets);
+				List<Integer> offsetsZ = new ArrayList<Integer>();
+				for (int gridOffsetZ = 0; (gridOffsetZ < boxSize) && (gridOffsetZ < depth); gridOffsetZ += increment)
+					offsetsZ.add(gridOffsetZ);
+				int[] oz = new int[offsetsZ.size()];
+				for (int k = 0; k < oz.length; k++)
+					oz[k] = offsetsZ.get(k);
+
+				long bestCount = Long.MAX_VALUE;
+				for (int gridOffsetX = 0; (gridOffsetX < boxSize)
+						&& (gridOffsetX < width); gridOffsetX += increment) {
+					for (int gridOffsetY = 0; (gridOffsetY < boxSize)
+							&& (gridOffsetY < height); gridOffsetY += increment) {
+						long[] counts = countBoxes(slices, width, height, boxSize, gridOffsetX, gridOffsetY,
+								oz, cTable, zScale, subGraph, min, executor);
+						for (long count : counts) {
+							if (count < bestCount)
+								bestCount = count;
+						}
+					}
+				}
+
+				xList.add(new Double((double) boxSize / (double) width));
+				yList.add(new Double(bestCount));
+
+				if (verboseOutput) {
+					IJ.write("Box count was " + bestCount + " for box size " + boxSize);
+				}
+			}
+
+			if (xList.size() == 0) {
+				IJ.write("\nError: No boxes!\nMake sure that starting and ending box size and "
+								+ "\nreduction rate allow for at least one box size to exist!");
+				return;
+			}
+
+			double[] boxSizes = new double[xList.size()];
+			double[] boxCounts = new double[yList.size()];
+			for (int i = 0; i < boxSizes.length; i++) {
+				boxSizes[i] = -Math.log(xList.get(i).doubleValue());
+				boxCounts[i] = Math.log(yList.get(i).doubleValue());
+			}
+
+			if (verboseOutput) {
+				IJ.write("Used " + boxSizes.length + " different box sizes, from "
+						+ maxBox + " to " + minBox
+						+ " with " + numOffsets + " translations of each box, in "
+						+ (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.");
+			}
+
+			CurveFitter cf = new CurveFitter(boxSizes, boxCounts);
+			cf.doFit(CurveFitter.STRAIGHT_LINE);
+			double[] p = cf.getParams();
+			final String label = imRef.getTitle() + ": Dimension estimate: " + IJ.d2s(p[1], 4);
+			if (!quiet)
+				IJ.write(label);
+
+			if (plotGraph)
+				doPlotGraph(p, boxSizes, boxCounts);
+
+			// The curve in box sizes in pixels
+			double[] fitSizes = new double[xList.size()];
+			double[] fitCounts = new double[yList.size()];
+			for (int i = 0; i < fitSizes.length; i++) {
+				fitSizes[i] = Math.round(xList.get(i) * width);
+				fitCounts[i] = yList.get(i);
+			}
+			ResultsTable rt = FitResults.add(imRef.getTitle(), fitSizes, fitCounts);
+			rt.addValue("Translations", numOffsets);
+			FitResults.show(rt);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			executor.shutdown();
+		}
+
+		if (imRef != null)
+			imRef.unlock();
+	}
+
+	static double minValue(Object[] slices, int width, int height, float[] cTable) {
+		double min = Double.POSITIVE_INFINITY;
+		float[] row = new float[width];
+		for (Object pixels : slices) {
+			for (int y = 0; y < height; y++) {
+				readRow(pixels, y * width, row, cTable);
+				for (int x = 0; x < width; x++) {
+					if (row[x] < min)
+						min = row[x];
+				}
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Copies a row of an 8, 16 or 32-bit slice into row, through the
+	 * calibration table of 8 and 16-bit slices if there is one.
+	 */
+	static void readRow(Object pixels, int offset, float[] row, float[] cTable) {
+		final int width = row.length;
+		if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[]) pixels;
+			for (int x = 0; x < width; x++)
+				row[x] = cTable == null ? bytes[offset + x] & 0xff : cTable[bytes[offset + x] & 0xff];
+		} else if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			for (int x = 0; x < width; x++)
+				row[x] = cTable == null ? shorts[offset + x] & 0xffff : cTable[shorts[offset + x] & 0xffff];
+		} else {
+			System.arraycopy((float[]) pixels, offset, row, 0, width);
+		}
+	}
+
+	/**
+	 * Counts the SDBC boxes of the grid of cubes of the given size, shifted
+	 * by (-gridOffsetX, -gridOffsetY, -oz[k]), for each z offset oz[k].
+	 * Values are looked up in cTable, if not null, and then scaled by zScale.
+	 * With subGraph, the boxes of a column reach down to min, the smallest
+	 * calibrated value in the stack, unscaled as in MapFractalCount_. Block
+	 * rows are counted on the executor.
+	 */
+	static long[] countBoxes(final Object[] slices, final int width, final int height, final int boxSize,
+			final int gridOffsetX, final int gridOffsetY, final int[] oz, final float[] cTable, final double zScale,
+			final boolean subGraph, final double min, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		final int blockRows = (height + gridOffsetY + boxSize - 1) / boxSize;
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		for (int by = 0; by < blockRows; by++) {
+			final int y0 = Math.max(0, by * boxSize - gridOffsetY);
+			final int y1 = Math.min(height, (by + 1) * boxSize - gridOffsetY);
+			results.add(executor.submit(new Callable<long[]>() {
+				public long[] call() {
+					return countBlockRow(slices, width, boxSize, gridOffsetX, oz, y0, y1, cTable, zScale,
+							subGraph, min);
+				}
+			}));
+		}
+
+		long[] counts = new long[oz.length];
+		for (Future<long[]> result : results) {
+			long[] rowCounts = result.get();
+			for (int k = 0; k < oz.length; k++)
+				counts[k] += rowCounts[k];
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts the boxes over the cubes of one block row, rows y0 .. y1 - 1,
+	 * through all slices.
+	 */
+	private static long[] countBlockRow(Object[] slices, int width, int boxSize, int gridOffsetX, int[] oz,
+			int y0, int y1, float[] cTable, double zScale, boolean subGraph, double min) {
+		final int depth = slices.length;
+		final int blocksX = (width + gridOffsetX + boxSize - 1) / boxSize;
+		float[] row = new float[width];
+
+		// Min and max of each block of the current slice
+		double[] sliceMin = new double[blocksX];
+		double[] sliceMax = new double[blocksX];
+		// Min and max of each cube so far, for each z offset
+		double[][] cubeMin = new double[oz.length][blocksX];
+		double[][] cubeMax = new double[oz.length][blocksX];
+		for (int k = 0; k < oz.length; k++) {
+			Arrays.fill(cubeMin[k], Double.POSITIVE_INFINITY);
+			Arrays.fill(cubeMax[k], Double.NEGATIVE_INFINITY);
+		}
+
+		long[] counts = new long[oz.length];
+		for (int z = 0; z < depth; z++) {
+			Arrays.fill(sliceMin, Double.POSITIVE_INFINITY);
+			Arrays.fill(sliceMax, Double.NEGATIVE_INFINITY);
+			for (int y = y0; y < y1; y++) {
+				readRow(slices[z], y * width, row, cTable);
+				for (int bx = 0; bx < blocksX; bx++) {
+					final int xStart = Math.max(0, bx * boxSize - gridOffsetX);
+					final int xEnd = Math.min(width, (bx + 1) * boxSize - gridOffsetX);
+					double blockMin = sliceMin[bx], blockMax = sliceMax[bx];
+					for (int x = xStart; x < xEnd; x++) {
+						final double zValue = zScale * row[x];
+						if (zValue < blockMin)
+							blockMin = zValue;
+						if (zValue > blockMax)
+							blockMax = zValue;
+					}
+					sliceMin[bx] = blockMin;
+					sliceMax[bx] = blockMax;
+				}
+			}
+
+			for (int k = 0; k < oz.length; k++) {
+				final double[] kMin = cubeMin[k], kMax = cubeMax[k];
+				for (int bx = 0; bx < blocksX; bx++) {
+					if (sliceMin[bx] < kMin[bx])
+						kMin[bx] = sliceMin[bx];
+					if (sliceMax[bx] > kMax[bx])
+						kMax[bx] = sliceMax[bx];
+				}
+
+				// Count the cubes that end at this slice
+				if ((z + oz[k] + 1) % boxSize == 0 || z == depth - 1) {
+					for (int bx = 0; bx < blocksX; bx++) {
+						if (subGraph)
+							counts[k] += 1 + (int) ((kMax[bx] - min + 1) / boxSize);
+						else
+							counts[k] += 1 + (int) ((kMax[bx] - kMin[bx] + 1) / boxSize);
+					}
+					Arrays.fill(kMin, Double.POSITIVE_INFINITY);
+					Arrays.fill(kMax, Double.NEGATIVE_INFINITY);
+				}
+			}
+		}
+		return counts;
+	}
+
+	void doPlotGraph(double[] params, double[] boxSizes, double[] boxCountSums) {
+
+		final int samples = 100;
+		float[] px = new float[samples];
+		float[] py = new float[samples];
+		double[] a = Tools.getMinMax(boxSizes);
+		double xmin = a[0], xmax = a[1];
+
+		a = Tools.getMinMax(boxCountSums);
+		double ymin = a[0], ymax = a[1];
+		final double inc = (xmax - xmin) / ((double) samples - 1);
+		double tmp = xmin;
+
+		for (int i = 0; i < samples; i++) {
+			px[i] = (float) tmp;
+			tmp += inc;
+		}
+		for (int i = 0; i < samples; i++) {
+			py[i] = (float) CurveFitter.f(CurveFitter.STRAIGHT_LINE, params, px[i]);
+		}
+		a = Tools.getMinMax(py);
+		ymin = Math.min(ymin, a[0]);
+		ymax = Math.max(ymax, a[1]);
+		PlotWindow pw = new PlotWindow("Plot", "-log(box size)", "log(box count)", px, py);
+		pw.setLimits(xmin, xmax * 0.9, ymin, ymax * 1.1);
+		pw.addPoints(Tools.toFloat(boxSizes), Tools.toFloat(boxCountSums), PlotWindow.CIRCLE);
+		final String plotLabel = "Slope: " + IJ.d2s(params[1], 4);
+		pw.addLabel(0.25, 0.25, plotLabel);
+		pw.draw();
+	}
+
+	void showAbout() {
+		IJ.showMessage("About MapFractalCount3D..",
+				"This plugin estimates the fractal dimension of greylevel\n"
+				+ "volumes, interpreted as hypersurfaces\n");
+	}
+
+}
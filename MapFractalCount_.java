@@ -12,10 +12,12 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.gui.PlotWindow;
 import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ij.util.Tools;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class MapFractalCount_ implements PlugInFilter {
@@ -33,6 +35,8 @@ public class MapFractalCount_ implements PlugInFilter {
 
 	boolean verboseOutput = false;
 
+	boolean quiet = false;
+
 	int maxBox = 24;
 
 	int minBox = 2;
@@ -43,6 +47,21 @@ public class MapFractalCount_ implements PlugInFilter {
 
 	boolean subGraph = true;
 
+	boolean streamRows = false;
+
+	boolean autoParam = true;
+
+	boolean adaptive = false;
+
+	boolean useCache = true;
+
+	boolean keepState = false;
+
+	boolean liveUpdate = false;
+
+	// Set for the runs started by a live update
+	boolean liveRun = false;
+
 	public int setup(String arg, ImagePlus imp) {
 		imRef = imp;
 		if (imp == null)
@@ -54,9 +73,14 @@ public class MapFractalCount_ implements PlugInFilter {
 		}
 
 		getParams();
+		if (!noGo && !liveUpdate) {
+			// A run without live update ends the live update of an earlier run
+			LiveUpdate.stop(imRef);
+		}
 		if (!noGo) {
 			IJ.showStatus("Estimating dimension..");
-			IJ.write("Estimating dimension..");
+			if (!quiet)
+				IJ.write("Estimating dimension..");
 		}
 
 		return DOES_8G + DOES_16 + DOES_32 + SUPPORTS_MASKING + DOES_STACKS;
@@ -68,9 +92,18 @@ public class MapFractalCount_ implements PlugInFilter {
 		gd.addCheckbox("Plot results", plotGraph);
 		gd.addCheckbox("Include subgraph (volume)", subGraph);
 		gd.addCheckbox("Verbose output", verboseOutput);
+		gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
+		gd.addCheckbox("Stream rows in a single pass", streamRows);
+		gd.addCheckbox("Automatic box size", autoParam);
+		gd.addCheckbox("Adaptive box sizes (log-spaced, stop when the fit settles; off = every size)", adaptive);
+		gd.addCheckbox("Reuse cached counts", useCache);
+		gd.addCheckbox("Incremental update after edits", keepState);
+		gd.addCheckbox("Live update while editing", liveUpdate);
 		gd.addMessage("");
 		gd.addNumericField("Scale z-axis by", zScale, 1);
 		gd.addNumericField("Number of translations", numOffsets, 0);
+		gd.addNumericField("Start box size", maxBox, 0);
+		gd.addNumericField("Min box size", minBox, 0);
 
 		gd.showDialog();
 
@@ -83,6 +116,19 @@ public class MapFractalCount_ implements PlugInFilter {
 		plotGraph = gd.getNextBoolean();
 		subGraph = gd.getNextBoolean();
 		verboseOutput = gd.getNextBoolean();
+		quiet = gd.getNextBoolean();
+		if (quiet) {
+			plotGraph = false;
+			verboseOutput = false;
+		}
+		streamRows = gd.getNextBoolean();
+		autoParam = gd.getNextBoolean();
+		adaptive = gd.getNextBoolean();
+		useCache = gd.getNextBoolean();
+		keepState = gd.getNextBoolean();
+		liveUpdate = gd.getNextBoolean();
+		if (liveUpdate)
+			keepState = true;
 		zScale = gd.getNextNumber();
 
 		numOffsets = (int) gd.getNextNumber();
@@ -90,6 +136,12 @@ public class MapFractalCount_ implements PlugInFilter {
 			IJ.write("Number of offsets must be at least 1. Please select another value.");
 			noGo = true;
 		}
+		maxBox = (int) gd.getNextNumber();
+		minBox = (int) gd.getNextNumber();
+		if (!autoParam && minBox < 1) {
+			IJ.write("Min box size must be at least 1. Please select another value.");
+			noGo = true;
+		}
 
 	}
 
@@ -103,130 +155,141 @@ public class MapFractalCount_ implements PlugInFilter {
 			final int width = ip.getWidth();
 			final int height = ip.getHeight();
 
-			maxBox = Math.max(width, height) / autoDiv;
-			minBox = autoMin;
+			if (autoParam) {
+				maxBox = Math.max(width, height) / autoDiv;
+				minBox = autoMin;
+			}
 
 			if (width <= 0 || height <= 0) {
 				IJ.write("\nError: Empty image. Dimension not defined.");
 				return;
 			}
 
-			float min = Float.MAX_VALUE;
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					float value = ip.getPixelValue(x, y);
-					if (value < min)
-						min = value;
+			ArrayList<Double> xList = new ArrayList<Double>();
+			ArrayList<Double> yList = new ArrayList<Double>();
+
+			// Either every size from maxBox down, or log-spaced sizes that
+			// are counted until the fit settles
+			BoxSizeScheduler scheduler = null;
+			int[] sizes;
+			if (adaptive) {
+				scheduler = new BoxSizeScheduler(maxBox, minBox, width, height);
+				sizes = scheduler.getCandidates();
+			} else {
+				sizes = new int[Math.max(0, maxBox - minBox + 1)];
+				for (int i = 0; i < sizes.length; i++) {
+					sizes[i] = maxBox - i;
 				}
 			}
 
-			// Create variables we need and set them
-			int bestCount;
-			int count = 0;
-			ArrayList<Double> xList = new ArrayList<Double>();
-			ArrayList<Double> yList = new ArrayList<Double>();
-			int xPos, yPos;
-			int xGrid, yGrid;
-			int xStart, yStart;
-			int xEnd, yEnd;
-			double boxZMin, boxZMax;
-
-			for (int boxSize = maxBox; boxSize >= minBox; boxSize--) {
-
-				bestCount = Integer.MAX_VALUE; // Init count for this boxSize
-				final int increment = Math.max(1, boxSize / numOffsets);
-
-				for (int gridOffsetX = 0; (gridOffsetX < boxSize)
-						&& (gridOffsetX < width); gridOffsetX += increment) {
-
-					for (int gridOffsetY = 0; (gridOffsetY < boxSize)
-							&& (gridOffsetY < height); gridOffsetY += increment) {
-
-						count = 0;
-
-						final int iMax = width + gridOffsetX;
-						final int jMax = height + gridOffsetY;
-
-						// Iterate over box-grid
-						for (int i = 0; i <= iMax; i += boxSize) {
-							xGrid = -gridOffsetX + i;
-							for (int j = 0; j <= jMax; j += boxSize) {
-								yGrid = -gridOffsetY + j;
-
-								xStart = 0;
-								if (xGrid < 0) {
-									xStart = -xGrid;
-								}
-								if ((boxSize + xGrid) >= width) {
-									xEnd = Math.min(width, (width - xGrid));
-								} else {
-									xEnd = boxSize;
-								}
-
-								yStart = 0;
-								if (yGrid < 0) {
-									yStart = -yGrid;
-								}
-								yEnd = boxSize;
-								if ((boxSize + yGrid) >= height) {
-									yEnd = Math.min(height, (height - yGrid));
-								}
-
-								boxZMin = Float.POSITIVE_INFINITY;
-								boxZMax = Float.NEGATIVE_INFINITY;
-							
-								// Inspect box
-								for (int x = xStart; x < xEnd; x++) {
-									xPos = x + xGrid;
-
-									for (int y = yStart; y < yEnd; y++) {
-										yPos = y + yGrid;
-
-										double zValue = zScale * ip.getPixelValue(xPos, yPos);
-
-										if (zValue < boxZMin)
-											boxZMin = zValue;
-										if (zValue > boxZMax)
-											boxZMax = zValue;
-									}
-								}
-
-								int boxes = 0;
-
-								// If a box is entirely outside image edges,
-								// ignore this box
-								if ( boxZMax == Float.NEGATIVE_INFINITY)
-									continue;
-								// Else, calculate box count of the column with
-								// base
-								// {x=xStart..xEnd,y=yStart..yEnd} based on the
-								// SDBC way.
-								// The SDBC algorithm is described in
-								// "Two algorithms to estimate fractal dimension
-								// of gray level images" by Wen-Shiung Chen et.al.
-								// Published in "Optical Engineering", Vol 42.
-								// No. 8, August 2003.
-
-								if (subGraph) {
-									boxes = 1 + (int) ((boxZMax - min + 1) / boxSize);
-								} else {
-									boxes = 1 + (int) ((boxZMax - boxZMin + 1) / boxSize);
-
-								}
-								count += boxes;
+			if (streamRows) {
+				long[] counts = doStreamingBoxCount(ip, sizes);
+				for (int i = 0; i < sizes.length; i++) {
+					xList.add(new Double((double) sizes[i] / (double) width));
+					yList.add(new Double(counts[i]));
+					if (scheduler != null)
+						scheduler.add(sizes[i], counts[i]);
+
+					if (verboseOutput) {
+						IJ.write("Box count was " + counts[i] + " for box size " + sizes[i]);
+					}
+				}
+			} else if (keepState && imRef.getStackSize() == 1) {
+				// Patch the box min/max kept from the previous run
+				int[][] changed = new int[1][];
+				SurfaceBoxState state = SurfaceBoxState.update(imRef.getID(), ip, zScale, subGraph,
+						sizes, numOffsets, changed);
+				if (verboseOutput && changed[0] != null) {
+					final int[] r = changed[0];
+					IJ.write("Recounted the boxes of the edited region x " + r[0] + "-" + r[3]
+							+ ", y " + r[1] + "-" + r[4]);
+				}
+
+				long[] counts = state.getGrids().getBestCounts(state.getGridCounts());
+				for (int i = 0; i < sizes.length; i++) {
+					xList.add(new Double((double) sizes[i] / (double) width));
+					yList.add(new Double(counts[i]));
+					if (scheduler != null)
+						scheduler.add(sizes[i], counts[i]);
+
+					if (verboseOutput) {
+						IJ.write("Box count was " + counts[i] + " for box size " + sizes[i]);
+					}
+				}
+			} else {
+				float min = Float.MAX_VALUE;
+				for (int x = 0; x < width; x++) {
+					for (int y = 0; y < height; y++) {
+						float value = ip.getPixelValue(x, y);
+						if (value < min)
+							min = value;
+					}
+				}
+
+				// Only count the grids that are not cached from an earlier run
+				final String cacheKey = useCache ? CountCache.imageKey(imRef, CountCache.calibratedFingerprint(ip),
+						"sdbc:" + zScale + ":" + subGraph) : null;
+				int numCached = 0;
+				int numGrids = 0;
+
+				long bestCount;
+				Long count;
+				for (int s = 0; s < sizes.length; s++) {
+					if (scheduler != null && scheduler.isStopped())
+						break;
+					final int boxSize = sizes[s];
+
+					bestCount = Long.MAX_VALUE; // Init count for this boxSize
+					final int increment = Math.max(1, boxSize / numOffsets);
+
+					for (int gridOffsetX = 0; (gridOffsetX < boxSize)
+							&& (gridOffsetX < width); gridOffsetX += increment) {
+
+						for (int gridOffsetY = 0; (gridOffsetY < boxSize)
+								&& (gridOffsetY < height); gridOffsetY += increment) {
+
+							count = useCache ? CountCache.get(cacheKey, boxSize, gridOffsetX, gridOffsetY, 0) : null;
+							numGrids++;
+							if (count == null) {
+								count = countBoxes(ip, boxSize, gridOffsetX, gridOffsetY, zScale, subGraph, min);
+								if (useCache)
+									CountCache.put(cacheKey, boxSize, gridOffsetX, gridOffsetY, 0, count);
+							} else {
+								numCached++;
+							}
+							if (count < bestCount) {
+								bestCount = count;
 							}
-						}
-						if (count < bestCount) {
-							bestCount = count;
 						}
 					}
-				}
 
-				xList.add(new Double((double) boxSize / (double) width));
-				yList.add(new Double(bestCount));
+					xList.add(new Double((double) boxSize / (double) width));
+					yList.add(new Double(bestCount));
+					if (scheduler != null)
+						scheduler.add(boxSize, bestCount);
+
+					if (verboseOutput) {
+						IJ.write("Box count was " + bestCount + " for box size " + boxSize);
+					}
+				}
+				if (verboseOutput && useCache) {
+					IJ.write("Reused " + numCached + " of " + numGrids + " grid counts from the cache");
+				}
+			}
 
-				if (verboseOutput) {
-					IJ.write("Box count was " + bestCount + " for box size " + boxSize);
+			if (scheduler != null) {
+				// Fit the scaling region only
+				if (!quiet) {
+					for (String line : scheduler.getReport())
+						IJ.write(line);
+				}
+				int[] regionSizes = scheduler.getSizes();
+				long[] regionCounts = scheduler.getCounts();
+				xList.clear();
+				yList.clear();
+				for (int i = 0; i < regionSizes.length; i++) {
+					xList.add(new Double((double) regionSizes[i] / (double) width));
+					yList.add(new Double(regionCounts[i]));
 				}
 			}
 
@@ -252,18 +315,181 @@ public class MapFractalCount_ implements PlugInFilter {
 			CurveFitter cf = new CurveFitter(boxSizes, boxCounts);
 			cf.doFit(CurveFitter.STRAIGHT_LINE);
 			double[] p = cf.getParams();
-			final String label = imRef.getTitle() + ": Dimension estimate: " + IJ.d2s(p[1], 4);
-			IJ.write(label);
+			final String label = imRef.getTitle() + ": Dimension estimate: " + IJ.d2s(p[1], 4)
+					+ ": Box sizes: " + (adaptive ? "adaptive" : "every size");
+			if (!quiet)
+				IJ.write(label);
 
-			if (plotGraph)
+			if (plotGraph && !liveRun)
 				doPlotGraph(p, boxSizes, boxCounts);
 
+			if (!liveRun) {
+				// The curve in box sizes in pixels
+				double[] fitSizes = new double[xList.size()];
+				double[] fitCounts = new double[yList.size()];
+				for (int i = 0; i < fitSizes.length; i++) {
+					fitSizes[i] = Math.round(xList.get(i) * width);
+					fitCounts[i] = yList.get(i);
+				}
+				ResultsTable rt = FitResults.add(imRef.getTitle(), fitSizes, fitCounts);
+				rt.addValue("Translations", numOffsets);
+				rt.addValue("Adaptive", adaptive ? 1 : 0);
+				FitResults.show(rt);
+			}
+
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 
-		if (imRef != null)
+		// Live re-runs call run() without setup() and hold no lock. Unlock
+		// before starting them, since a live re-run sets liveRun.
+		final boolean startLive = liveUpdate && !liveRun;
+		if (imRef != null && !liveRun)
 			imRef.unlock();
+
+		if (startLive) {
+			final ImagePlus imp = imRef;
+			LiveUpdate.start(imp, new Runnable() {
+				public void run() {
+					liveRun = true;
+					MapFractalCount_.this.run(imp.getProcessor());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Counts the SDBC boxes of one grid, shifted by
+	 * (-gridOffsetX, -gridOffsetY). With subGraph, the boxes of a column
+	 * reach down to min, the smallest value in the image.
+	 */
+	static long countBoxes(ImageProcessor ip, int boxSize, int gridOffsetX, int gridOffsetY,
+			double zScale, boolean subGraph, float min) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		long count = 0;
+		int xPos, yPos;
+		int xGrid, yGrid;
+		int xStart, yStart;
+		int xEnd, yEnd;
+		double boxZMin, boxZMax;
+
+		final int iMax = width + gridOffsetX;
+		final int jMax = height + gridOffsetY;
+
+		// Iterate over box-grid
+		for (int i = 0; i <= iMax; i += boxSize) {
+			xGrid = -gridOffsetX + i;
+			for (int j = 0; j <= jMax; j += boxSize) {
+				yGrid = -gridOffsetY + j;
+
+				xStart = 0;
+				if (xGrid < 0) {
+					xStart = -xGrid;
+				}
+				if ((boxSize + xGrid) >= width) {
+					xEnd = Math.min(boxSize, (width - xGrid));
+				} else {
+					xEnd = boxSize;
+				}
+
+				yStart = 0;
+				if (yGrid < 0) {
+					yStart = -yGrid;
+				}
+				yEnd = boxSize;
+				if ((boxSize + yGrid) >= height) {
+					yEnd = Math.min(boxSize, (height - yGrid));
+				}
+
+				boxZMin = Float.POSITIVE_INFINITY;
+				boxZMax = Float.NEGATIVE_INFINITY;
+
+				// Inspect box
+				for (int x = xStart; x < xEnd; x++) {
+					xPos = x + xGrid;
+
+					for (int y = yStart; y < yEnd; y++) {
+						yPos = y + yGrid;
+
+						double zValue = zScale * ip.getPixelValue(xPos, yPos);
+
+						if (zValue < boxZMin)
+							boxZMin = zValue;
+						if (zValue > boxZMax)
+							boxZMax = zValue;
+					}
+				}
+
+				int boxes = 0;
+
+				// If a box is entirely outside image edges,
+				// ignore this box
+				if ( boxZMax == Float.NEGATIVE_INFINITY)
+					continue;
+				// Else, calculate box count of the column with
+				// base
+				// {x=xStart..xEnd,y=yStart..yEnd} based on the
+				// SDBC way.
+				// The SDBC algorithm is described in
+				// "Two algorithms to estimate fractal dimension
+				// of gray level images" by Wen-Shiung Chen et.al.
+				// Published in "Optical Engineering", Vol 42.
+				// No. 8, August 2003.
+
+				if (subGraph) {
+					boxes = 1 + (int) ((boxZMax - min + 1) / boxSize);
+				} else {
+					boxes = 1 + (int) ((boxZMax - boxZMin + 1) / boxSize);
+
+				}
+				count += boxes;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts all box sizes in one sequential read of the image rows. With
+	 * subGraph, the smallest value is found in a first, cheap pass.
+	 */
+	long[] doStreamingBoxCount(ImageProcessor ip, int[] sizes) throws IOException {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+
+		double min = 0;
+		if (subGraph) {
+			min = Double.POSITIVE_INFINITY;
+			float[] row = new float[width];
+			RowSource source = RowSource.open(imRef, ip, true);
+			try {
+				for (int y = 0; y < height; y++) {
+					source.nextRow(row);
+					for (int x = 0; x < width; x++) {
+						if (row[x] < min)
+							min = row[x];
+					}
+				}
+			} finally {
+				source.close();
+			}
+		}
+
+		RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.SURFACE, width, height, sizes, numOffsets);
+		counter.setSurface(zScale, subGraph, min);
+
+		RowSource source = RowSource.open(imRef, ip, true);
+		if (verboseOutput) {
+			IJ.write("Streaming " + height + " rows from the "
+					+ (source.isFromFile() ? "original file" : "image")
+					+ " into " + counter.getNumGrids() + " grids");
+		}
+		try {
+			FractalCount_.streamRows(source, counter);
+		} finally {
+			source.close();
+		}
+		return counter.getBestCounts();
 	}
 
 	void doPlotGraph(double[] params, double[] boxSizes, double[] boxCountSums) {
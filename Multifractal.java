@@ -0,0 +1,137 @@
+/*
+ * Generalised dimensions Dq and the multifractal spectrum f(alpha) of a
+ * mass distribution, from the masses of the boxes of a box count.
+ *
+ * For each grid the box masses are read from a summed-area table into one
+ * array, and the partition sums of all q are accumulated in a single pass
+ * over it. With p the box mass fractions and mu = p^q / Z(q):
+ *   Z(q) = sum p^q,  A(q) = sum mu log p,  F(q) = sum mu log mu.
+ * These are averaged over the translations of each box size, and
+ *   Dq = slope(log Z, log s) / (q - 1)   (D1 = slope(sum p log p, log s)),
+ *   alpha(q) = slope(A, log s),  f(q) = slope(F, log s).
+ * f(alpha) is found directly as in Chhabra and Jensen, "Direct determination
+ * of the f(alpha) singularity spectrum", Phys. Rev. Lett. 62, 1989.
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.Arrays;
+
+class Multifractal {
+
+    final double[] q;
+
+    final double[] dq;
+
+    final double[] alpha;
+
+    final double[] f;
+
+    private Multifractal(double[] q) {
+        this.q = q;
+        dq = new double[q.length];
+        alpha = new double[q.length];
+        f = new double[q.length];
+    }
+
+    /**
+     * Computes the spectra over the grids of grids. Returns null if there
+     * are fewer than two box sizes with mass.
+     */
+    static Multifractal estimate(IntegralImage integral, BoxGrids grids, double[] q) {
+        final int width = integral.getWidth();
+        final int height = integral.getHeight();
+        final int depth = integral.getDepth();
+        final int numQ = q.length;
+        final int numSizes = grids.getNumSizes();
+
+        double[] logSize = new double[numSizes];
+        double[][] logZ = new double[numQ][numSizes];
+        double[][] sumA = new double[numQ][numSizes];
+        double[][] sumF = new double[numQ][numSizes];
+        double[] z = new double[numQ];
+        double[] w = new double[numQ];
+
+        int largestGrid = 0;
+        for (int i = 0; i < numSizes; i++) {
+            final int boxSize = grids.getBoxSize(i);
+            largestGrid = Math.max(largestGrid, boxesInGrid(width, boxSize) * boxesInGrid(height, boxSize)
+                    * boxesInGrid(depth, boxSize));
+        }
+        double[] masses = new double[largestGrid];
+
+        int n = 0;
+        for (int i = 0; i < numSizes; i++) {
+            final int boxSize = grids.getBoxSize(i);
+            int numGrids = 0;
+
+            for (int g = grids.getFirstGrid(i); g < grids.getEndGrid(i); g++) {
+                // Gather the masses of the occupied boxes of this grid
+                int numBoxes = 0;
+                double total = 0;
+                for (int zGrid = -grids.getOffsetZ(g); zGrid < depth; zGrid += boxSize) {
+                    final int z0 = Math.max(0, zGrid), z1 = Math.min(depth, zGrid + boxSize);
+                    for (int yGrid = -grids.getOffsetY(g); yGrid < height; yGrid += boxSize) {
+                        final int y0 = Math.max(0, yGrid), y1 = Math.min(height, yGrid + boxSize);
+                        for (int xGrid = -grids.getOffsetX(g); xGrid < width; xGrid += boxSize) {
+                            final int x0 = Math.max(0, xGrid), x1 = Math.min(width, xGrid + boxSize);
+                            final double mass = integral.boxSum(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0);
+                            if (mass > 0) {
+                                masses[numBoxes++] = mass;
+                                total += mass;
+                            }
+                        }
+                    }
+                }
+                if (numBoxes == 0) {
+                    continue;
+                }
+
+                // One pass over the masses for all q
+                Arrays.fill(z, 0);
+                Arrays.fill(w, 0);
+                for (int b = 0; b < numBoxes; b++) {
+                    final double logP = Math.log(masses[b] / total);
+                    for (int k = 0; k < numQ; k++) {
+                        final double pq = Math.exp(q[k] * logP);
+                        z[k] += pq;
+                        w[k] += pq * logP;
+                    }
+                }
+                for (int k = 0; k < numQ; k++) {
+                    final double a = w[k] / z[k];
+                    logZ[k][n] += q[k] == 1 ? a : Math.log(z[k]);
+                    sumA[k][n] += a;
+                    sumF[k][n] += q[k] * a - Math.log(z[k]);
+                }
+                numGrids++;
+            }
+
+            if (numGrids > 0) {
+                for (int k = 0; k < numQ; k++) {
+                    logZ[k][n] /= numGrids;
+                    sumA[k][n] /= numGrids;
+                    sumF[k][n] /= numGrids;
+                }
+                logSize[n++] = Math.log(boxSize);
+            }
+        }
+        if (n < 2) {
+            return null;
+        }
+
+        Multifractal result = new Multifractal(q.clone());
+        for (int k = 0; k < numQ; k++) {
+            final double slope = LineFit.slope(logSize, logZ[k], n);
+            result.dq[k] = q[k] == 1 ? slope : slope / (q[k] - 1);
+            result.alpha[k] = LineFit.slope(logSize, sumA[k], n);
+            result.f[k] = LineFit.slope(logSize, sumF[k], n);
+        }
+        return result;
+    }
+
+    private static int boxesInGrid(int length, int boxSize) {
+        // One more than the boxes of the unshifted grid, for the translations
+        return (length + boxSize - 1) / boxSize + 1;
+    }
+}
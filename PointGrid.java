@@ -0,0 +1,159 @@
+/*
+ * Uniform grid index over the foreground coordinates of a binary image,
+ * for counting the points within many radii of a centre at once.
+ *
+ * The points are sorted by grid cell, so that the points of a cell are one
+ * contiguous range. A query visits the cells that the largest radius can
+ * reach once, and puts each point into the histogram bin of the smallest
+ * radius that holds it; the running sum of the histogram then gives the
+ * count for every radius.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+class PointGrid {
+
+    private final int cellSize;
+
+    private final int cellsX;
+
+    private final int cellsY;
+
+    private final int cellsZ;
+
+    // Points of cell i are cellStart[i] .. cellStart[i + 1] - 1
+    private final int[] cellStart;
+
+    private final int[] xs;
+
+    private final int[] ys;
+
+    private final int[] zs;
+
+    private PointGrid(int width, int height, int depth, int cellSize, int numPoints) {
+        this.cellSize = cellSize;
+        cellsX = (width + cellSize - 1) / cellSize;
+        cellsY = (height + cellSize - 1) / cellSize;
+        cellsZ = (depth + cellSize - 1) / cellSize;
+        cellStart = new int[cellsX * cellsY * cellsZ + 1];
+        xs = new int[numPoints];
+        ys = new int[numPoints];
+        zs = new int[numPoints];
+    }
+
+    /**
+     * Indexes the pixels of a stack with a value of at least threshold,
+     * in cells of the given size. Queries are fastest when the cell size is
+     * close to the largest radius.
+     */
+    static PointGrid fromStack(ImageStack stack, double threshold, int cellSize) {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int depth = stack.getSize();
+        final int cellsX = (width + cellSize - 1) / cellSize;
+        final int cellsY = (height + cellSize - 1) / cellSize;
+
+        // Count the points of each cell, then place them by counting sort
+        int[] cellCounts = new int[cellsX * cellsY * ((depth + cellSize - 1) / cellSize)];
+        int numPoints = 0;
+        for (int z = 0; z < depth; z++) {
+            final ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (ip.getf(x + y * width) >= threshold) {
+                        cellCounts[(z / cellSize * cellsY + y / cellSize) * cellsX + x / cellSize]++;
+                        numPoints++;
+                    }
+                }
+            }
+        }
+
+        PointGrid grid = new PointGrid(width, height, depth, cellSize, numPoints);
+        for (int i = 0; i < cellCounts.length; i++) {
+            grid.cellStart[i + 1] = grid.cellStart[i] + cellCounts[i];
+            cellCounts[i] = grid.cellStart[i];
+        }
+        for (int z = 0; z < depth; z++) {
+            final ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (ip.getf(x + y * width) >= threshold) {
+                        final int p = cellCounts[(z / cellSize * cellsY + y / cellSize) * cellsX + x / cellSize]++;
+                        grid.xs[p] = x;
+                        grid.ys[p] = y;
+                        grid.zs[p] = z;
+                    }
+                }
+            }
+        }
+        return grid;
+    }
+
+    int getNumPoints() {
+        return xs.length;
+    }
+
+    int getX(int p) {
+        return xs[p];
+    }
+
+    int getY(int p) {
+        return ys[p];
+    }
+
+    int getZ(int p) {
+        return zs[p];
+    }
+
+    /**
+     * Adds to counts[k] the number of points within distance sqrt(radii2[k])
+     * of the centre, for each k. The squared radii must be increasing.
+     * histogram is scratch space of the same length.
+     */
+    void countWithin(double cx, double cy, double cz, double[] radii2, long[] histogram, long[] counts) {
+        final int numRadii = radii2.length;
+        final double maxRadius = Math.sqrt(radii2[numRadii - 1]);
+        final int cx0 = Math.max(0, (int) Math.floor((cx - maxRadius) / cellSize));
+        final int cy0 = Math.max(0, (int) Math.floor((cy - maxRadius) / cellSize));
+        final int cz0 = Math.max(0, (int) Math.floor((cz - maxRadius) / cellSize));
+        final int cx1 = Math.min(cellsX - 1, (int) Math.floor((cx + maxRadius) / cellSize));
+        final int cy1 = Math.min(cellsY - 1, (int) Math.floor((cy + maxRadius) / cellSize));
+        final int cz1 = Math.min(cellsZ - 1, (int) Math.floor((cz + maxRadius) / cellSize));
+
+        Arrays.fill(histogram, 0);
+        for (int k = cz0; k <= cz1; k++) {
+            for (int j = cy0; j <= cy1; j++) {
+                final int rowCell = (k * cellsY + j) * cellsX;
+                for (int p = cellStart[rowCell + cx0]; p < cellStart[rowCell + cx1 + 1]; p++) {
+                    final double dx = xs[p] - cx, dy = ys[p] - cy, dz = zs[p] - cz;
+                    final double d2 = dx * dx + dy * dy + dz * dz;
+                    if (d2 > radii2[numRadii - 1]) {
+                        continue;
+                    }
+                    // Smallest radius that holds the point
+                    int lo = 0, hi = numRadii - 1;
+                    while (lo < hi) {
+                        final int mid = (lo + hi) >>> 1;
+                        if (radii2[mid] >= d2) {
+                            hi = mid;
+                        } else {
+                            lo = mid + 1;
+                        }
+                    }
+                    histogram[lo]++;
+                }
+            }
+        }
+
+        long sum = 0;
+        for (int k = 0; k < numRadii; k++) {
+            sum += histogram[k];
+            counts[k] += sum;
+        }
+    }
+}
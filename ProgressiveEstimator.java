@@ -0,0 +1,272 @@
+/*
+ * Runs a box count coarse to fine in a background thread, so that a
+ * provisional dimension can be shown while the count goes on, and the
+ * count can be stopped with Esc.
+ *
+ * The work units are the grids of a BoxGrids. Every fourth box size is
+ * counted first, with its untranslated grid; then the other sizes; then
+ * the translations, one round at a time. After each of these stages the
+ * caller's listener is given the best counts so far, the fitted slope and
+ * a 95% confidence band for it. Esc is checked between work units.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class ProgressiveEstimator {
+
+    /**
+     * Counts the boxes of grid g. Called from the background thread.
+     */
+    interface GridCounter {
+        long count(int g);
+    }
+
+    /**
+     * Shown a new estimate. Called on the thread that called run().
+     */
+    interface Listener {
+        void update(ProgressiveEstimator estimator);
+    }
+
+    // The sizes of the first stage are this far apart
+    private static final int COARSE_STEP = 4;
+
+    private static final long POLL_MILLIS = 100;
+
+    // Two-sided 95% quantiles of Student's t, by degrees of freedom
+    private static final double[] T95 = {Double.NaN, 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306,
+            2.262, 2.228, 2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074,
+            2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private final BoxGrids grids;
+
+    private final GridCounter counter;
+
+    // Work units in order, and where each stage ends
+    private final int[] order;
+
+    private final int[] stageEnds;
+
+    private final long[] gridCounts;
+
+    private final boolean[] counted;
+
+    private int unitsDone = 0;
+
+    private int stagesDone = 0;
+
+    private volatile boolean cancelled = false;
+
+    private Throwable failure = null;
+
+    ProgressiveEstimator(BoxGrids grids, GridCounter counter) {
+        this.grids = grids;
+        this.counter = counter;
+        gridCounts = new long[grids.getNumGrids()];
+        counted = new boolean[grids.getNumGrids()];
+
+        List<Integer> units = new ArrayList<Integer>();
+        List<Integer> ends = new ArrayList<Integer>();
+        final int numSizes = grids.getNumSizes();
+        for (int i = 0; i < numSizes; i += COARSE_STEP) {
+            units.add(grids.getFirstGrid(i));
+        }
+        ends.add(units.size());
+        for (int i = 0; i < numSizes; i++) {
+            if (i % COARSE_STEP != 0) {
+                units.add(grids.getFirstGrid(i));
+            }
+        }
+        ends.add(units.size());
+        for (int round = 1; units.size() < grids.getNumGrids(); round++) {
+            for (int i = 0; i < numSizes; i++) {
+                if (grids.getFirstGrid(i) + round < grids.getEndGrid(i)) {
+                    units.add(grids.getFirstGrid(i) + round);
+                }
+            }
+            ends.add(units.size());
+        }
+
+        order = new int[units.size()];
+        for (int u = 0; u < order.length; u++) {
+            order[u] = units.get(u);
+        }
+        stageEnds = new int[ends.size()];
+        for (int s = 0; s < stageEnds.length; s++) {
+            stageEnds[s] = ends.get(s);
+        }
+    }
+
+    /**
+     * Counts all grids in a background thread, calling the listener after
+     * each stage and showing the progress. Returns false if the count was
+     * stopped with Esc; the estimate then stands on the grids counted so
+     * far.
+     */
+    boolean run(Listener listener) throws InterruptedException {
+        IJ.resetEscape();
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int u = 0; u < order.length && !cancelled; u++) {
+                        final long count = counter.count(order[u]);
+                        synchronized (ProgressiveEstimator.this) {
+                            gridCounts[order[u]] = count;
+                            counted[order[u]] = true;
+                            unitsDone = u + 1;
+                            ProgressiveEstimator.this.notifyAll();
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (ProgressiveEstimator.this) {
+                        failure = e;
+                    }
+                }
+            }
+        }, "Progressive box count");
+        worker.setDaemon(true);
+        worker.start();
+
+        int shownStages = 0;
+        while (true) {
+            boolean done;
+            synchronized (this) {
+                wait(POLL_MILLIS);
+                while (stagesDone < stageEnds.length && unitsDone >= stageEnds[stagesDone]) {
+                    stagesDone++;
+                }
+                done = unitsDone == order.length || !worker.isAlive();
+            }
+            IJ.showProgress(unitsDone, order.length);
+            if (IJ.escapePressed()) {
+                cancelled = true;
+            }
+            if (stagesDone > shownStages || done || cancelled) {
+                shownStages = stagesDone;
+                if (listener != null) {
+                    listener.update(this);
+                }
+            }
+            if (done || cancelled) {
+                break;
+            }
+        }
+        worker.join();
+        IJ.showProgress(1.0);
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("Box count failed", failure);
+            }
+        }
+        return !cancelled;
+    }
+
+    int getNumUnits() {
+        return order.length;
+    }
+
+    /**
+     * The counts so far, taken under one lock, so that the sizes and
+     * counts belong together while the background thread goes on.
+     */
+    static final class Snapshot {
+        // Sizes that have at least one counted grid, largest first
+        final int[] sizes;
+
+        // The smallest count over the counted grids of each size
+        final long[] counts;
+
+        // The counts of the counted grids of each size, one array per size
+        final long[][] countsBySize;
+
+        final int unitsDone;
+
+        private Snapshot(int[] sizes, long[] counts, long[][] countsBySize, int unitsDone) {
+            this.sizes = sizes;
+            this.counts = counts;
+            this.countsBySize = countsBySize;
+            this.unitsDone = unitsDone;
+        }
+
+        /**
+         * The slope of log(count) against -log(size), and the half width of
+         * its 95% confidence band ({slope, halfWidth}). The half width is
+         * NaN with fewer than three sizes.
+         */
+        double[] getEstimate() {
+            final int n = sizes.length;
+            if (n < 2) {
+                return new double[]{Double.NaN, Double.NaN};
+            }
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = -Math.log(sizes[i]);
+                y[i] = Math.log(counts[i]);
+            }
+            final double slope = LineFit.slope(x, y, n);
+            if (n < 3) {
+                return new double[]{slope, Double.NaN};
+            }
+
+            double meanX = 0, meanY = 0;
+            for (int i = 0; i < n; i++) {
+                meanX += x[i];
+                meanY += y[i];
+            }
+            meanX /= n;
+            meanY /= n;
+            double sxx = 0, sumSquares = 0;
+            for (int i = 0; i < n; i++) {
+                final double dx = x[i] - meanX;
+                final double r = y[i] - meanY - slope * dx;
+                sxx += dx * dx;
+                sumSquares += r * r;
+            }
+            final int df = n - 2;
+            final double t = df < T95.length ? T95[df] : 1.96;
+            return new double[]{slope, t * Math.sqrt(sumSquares / df / sxx)};
+        }
+    }
+
+    synchronized Snapshot snapshot() {
+        List<Integer> sizes = new ArrayList<Integer>();
+        List<long[]> bySize = new ArrayList<long[]>();
+        for (int i = 0; i < grids.getNumSizes(); i++) {
+            int numCounted = 0;
+            for (int g = grids.getFirstGrid(i); g < grids.getEndGrid(i); g++) {
+                if (counted[g]) {
+                    numCounted++;
+                }
+            }
+            if (numCounted == 0) {
+                continue;
+            }
+            long[] counts = new long[numCounted];
+            int k = 0;
+            for (int g = grids.getFirstGrid(i); g < grids.getEndGrid(i); g++) {
+                if (counted[g]) {
+                    counts[k++] = gridCounts[g];
+                }
+            }
+            sizes.add(grids.getBoxSize(i));
+            bySize.add(counts);
+        }
+
+        int[] sizeArray = new int[sizes.size()];
+        long[] best = new long[sizes.size()];
+        for (int i = 0; i < sizeArray.length; i++) {
+            sizeArray[i] = sizes.get(i);
+            best[i] = Long.MAX_VALUE;
+            for (long count : bySize.get(i)) {
+                best[i] = Math.min(best[i], count);
+            }
+        }
+        return new Snapshot(sizeArray, best, bySize.toArray(new long[bySize.size()][]), unitsDone);
+    }
+}
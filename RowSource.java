@@ -0,0 +1,289 @@
+/*
+ * Sequential, top to bottom source of image rows for the streaming box counts.
+ * Rows are read straight from the original file when it is an uncompressed
+ * greyscale image, otherwise from the ImageProcessor. A file can also be
+ * streamed without opening it at all (see StreamFractalCount_), so that
+ * only one row of it is in memory at a time.
+ *
+ * Rows hold the raw pixel values, as the binary threshold uses them, or the
+ * calibrated values, as getPixelValue() gives them to the surface counts.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.measure.CurveFitter;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+abstract class RowSource {
+
+    protected final int width;
+
+    protected final int height;
+
+    protected int nextRow = 0;
+
+    RowSource(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Opens a row source for ip, of raw or calibrated values. The original
+     * file of imp is used when it holds exactly the pixels of ip and can be
+     * decoded row by row.
+     */
+    static RowSource open(ImagePlus imp, ImageProcessor ip, boolean calibrated) throws IOException {
+        FileInfo fi = imp == null ? null : imp.getOriginalFileInfo();
+        if (fi != null && !imp.changes && imp.getStackSize() == 1
+                && fi.width == ip.getWidth() && fi.height == ip.getHeight()
+                && FileRowSource.canRead(fi)) {
+            return new FileRowSource(fi, calibrated ? ip.getCalibrationTable() : null);
+        }
+        return new ProcessorRowSource(ip, calibrated);
+    }
+
+    /**
+     * Reads the description of an uncompressed single image TIFF file,
+     * without reading its pixels. Returns null if the file cannot be
+     * streamed.
+     */
+    static FileInfo readFileInfo(File file) throws IOException {
+        FileInfo[] info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+        if (info == null || info.length != 1 || !FileRowSource.canRead(info[0])) {
+            return null;
+        }
+        // The calibration is kept in the ImageJ description string
+        new FileOpener(info[0]).decodeDescriptionString(info[0]);
+        return info[0];
+    }
+
+    /**
+     * Opens a row source that reads the file of fi, of raw or calibrated
+     * values.
+     */
+    static RowSource open(FileInfo fi, boolean calibrated) throws IOException {
+        return new FileRowSource(fi, calibrated ? calibrationTable(fi) : null);
+    }
+
+    /**
+     * The calibrated value of each raw value of an 8 or 16-bit file, as
+     * ImageJ sets it up when it opens the file, or null if the values are
+     * not calibrated.
+     */
+    static float[] calibrationTable(FileInfo fi) throws IOException {
+        if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_SIGNED
+                && fi.fileType != FileInfo.GRAY16_UNSIGNED) {
+            return null;
+        }
+        final boolean signed = fi.fileType == FileInfo.GRAY16_SIGNED;
+        final boolean function = fi.coefficients != null && fi.calibrationFunction != Calibration.NONE;
+        if (!signed && !function) {
+            return null;
+        }
+        // Fitted functions only; not optical density or custom tables
+        if (function && (signed || fi.calibrationFunction > Calibration.NONE)) {
+            throw new IOException("Unsupported calibration function " + fi.calibrationFunction);
+        }
+
+        float[] cTable = new float[fi.fileType == FileInfo.GRAY8 ? 256 : 65536];
+        for (int i = 0; i < cTable.length; i++) {
+            cTable[i] = signed ? i - 32768 : (float) CurveFitter.f(fi.calibrationFunction, fi.coefficients, i);
+        }
+        return cTable;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean isFromFile() {
+        return false;
+    }
+
+    /**
+     * Reads the next row into row, which must hold at least width values.
+     */
+    void nextRow(float[] row) throws IOException {
+        if (nextRow >= height) {
+            throw new IOException("Read past the last row");
+        }
+        readRow(nextRow, row);
+        nextRow++;
+    }
+
+    abstract void readRow(int y, float[] row) throws IOException;
+
+    void close() throws IOException {
+    }
+
+    private static class ProcessorRowSource extends RowSource {
+
+        private final ImageProcessor ip;
+
+        private final boolean calibrated;
+
+        ProcessorRowSource(ImageProcessor ip, boolean calibrated) {
+            super(ip.getWidth(), ip.getHeight());
+            this.ip = ip;
+            this.calibrated = calibrated;
+        }
+
+        void readRow(int y, float[] row) {
+            final int yPart = y * width;
+            for (int x = 0; x < width; x++) {
+                row[x] = calibrated ? ip.getPixelValue(x, y) : ip.getf(x + yPart);
+            }
+        }
+    }
+
+    private static class FileRowSource extends RowSource {
+
+        private final RandomAccessFile file;
+
+        private final int fileType;
+
+        private final boolean intelByteOrder;
+
+        private final int bytesPerPixel;
+
+        private final long[] segmentOffsets;
+
+        private final long[] segmentLengths;
+
+        private final byte[] buffer;
+
+        private final float[] cTable;
+
+        private int segment = 0;
+
+        private long segmentPos = 0;
+
+        static boolean canRead(FileInfo fi) {
+            if (fi.directory == null || fi.fileName == null
+                    || fi.compression > FileInfo.COMPRESSION_NONE || fi.nImages > 1) {
+                return false;
+            }
+            switch (fi.fileType) {
+                case FileInfo.GRAY8:
+                case FileInfo.GRAY16_SIGNED:
+                case FileInfo.GRAY16_UNSIGNED:
+                case FileInfo.GRAY32_INT:
+                case FileInfo.GRAY32_FLOAT:
+                    return new File(fi.directory, fi.fileName).isFile();
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * cTable, if not null, maps the raw 8 or 16-bit values to calibrated
+         * values.
+         */
+        FileRowSource(FileInfo fi, float[] cTable) throws IOException {
+            super(fi.width, fi.height);
+            this.cTable = fi.fileType == FileInfo.GRAY32_INT || fi.fileType == FileInfo.GRAY32_FLOAT ? null : cTable;
+            fileType = fi.fileType;
+            intelByteOrder = fi.intelByteOrder;
+            bytesPerPixel = fi.getBytesPerPixel();
+            buffer = new byte[width * bytesPerPixel];
+
+            // Uncompressed TIFFs may store the rows in several strips
+            if (fi.stripOffsets != null && fi.stripOffsets.length > 1
+                    && fi.stripLengths != null) {
+                final int n = fi.stripOffsets.length;
+                segmentOffsets = new long[n];
+                segmentLengths = new long[n];
+                for (int i = 0; i < n; i++) {
+                    segmentOffsets[i] = fi.stripOffsets[i] & 0xffffffffL;
+                    segmentLengths[i] = fi.stripLengths[i] & 0xffffffffL;
+                }
+            } else {
+                segmentOffsets = new long[]{fi.getOffset()};
+                segmentLengths = new long[]{(long) width * height * bytesPerPixel};
+            }
+
+            file = new RandomAccessFile(new File(fi.directory, fi.fileName), "r");
+            file.seek(segmentOffsets[0]);
+        }
+
+        boolean isFromFile() {
+            return true;
+        }
+
+        void readRow(int y, float[] row) throws IOException {
+            int filled = 0;
+            while (filled < buffer.length) {
+                if (segmentPos == segmentLengths[segment]) {
+                    segment++;
+                    if (segment == segmentOffsets.length) {
+                        throw new IOException("Unexpected end of image data");
+                    }
+                    segmentPos = 0;
+                    file.seek(segmentOffsets[segment]);
+                }
+                final int n = (int) Math.min(buffer.length - filled, segmentLengths[segment] - segmentPos);
+                file.readFully(buffer, filled, n);
+                filled += n;
+                segmentPos += n;
+            }
+
+            for (int x = 0; x < width; x++) {
+                final int i = x * bytesPerPixel;
+                switch (fileType) {
+                    case FileInfo.GRAY8:
+                        row[x] = 0xff & buffer[x];
+                        break;
+                    case FileInfo.GRAY16_SIGNED:
+                        row[x] = (short) readShort(i) + 32768;
+                        break;
+                    case FileInfo.GRAY16_UNSIGNED:
+                        row[x] = readShort(i);
+                        break;
+                    case FileInfo.GRAY32_INT:
+                        row[x] = readInt(i);
+                        break;
+                    default:
+                        row[x] = Float.intBitsToFloat(readInt(i));
+                }
+            }
+            if (cTable != null) {
+                for (int x = 0; x < width; x++) {
+                    row[x] = cTable[(int) row[x]];
+                }
+            }
+        }
+
+        private int readShort(int i) {
+            if (intelByteOrder) {
+                return (0xff & buffer[i]) | ((0xff & buffer[i + 1]) << 8);
+            }
+            return ((0xff & buffer[i]) << 8) | (0xff & buffer[i + 1]);
+        }
+
+        private int readInt(int i) {
+            if (intelByteOrder) {
+                return (0xff & buffer[i]) | ((0xff & buffer[i + 1]) << 8)
+                        | ((0xff & buffer[i + 2]) << 16) | ((0xff & buffer[i + 3]) << 24);
+            }
+            return ((0xff & buffer[i]) << 24) | ((0xff & buffer[i + 1]) << 16)
+                    | ((0xff & buffer[i + 2]) << 8) | (0xff & buffer[i + 3]);
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+}
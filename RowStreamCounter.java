@@ -0,0 +1,325 @@
+/*
+ * Single pass box counter for 2D images that are read row by row.
+ *
+ * All grids (box size and translation) are counted at once. Each grid keeps
+ * the state of its current row of boxes only: an occupancy bitset for binary
+ * images, or a running min/max per box column for the SDBC surface count.
+ * When a row of boxes is complete it is added to the count of the grid and
+ * the state is cleared, so memory is O(width x number of grids).
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.Arrays;
+
+class RowStreamCounter {
+
+    static final int BINARY = 0;
+
+    static final int SURFACE = 1;
+
+    private final int mode;
+
+    private final int width;
+
+    private final int height;
+
+    private final int[] boxSizes;
+
+    // Per grid
+    private final int[] gridSize;
+
+    private final int[] gridOffsetX;
+
+    private final int[] gridOffsetY;
+
+    private final int[] gridFirstSize;
+
+    private final long[] gridCounts;
+
+    private final long[][] occupied;
+
+    private final double[][] columnMin;
+
+    private final double[][] columnMax;
+
+    // Binary settings
+    private double threshold;
+
+    private int[] runStarts;
+
+    private int[] runEnds;
+
+    // Surface settings
+    private double zScale = 1.0;
+
+    private boolean subGraph;
+
+    private double globalMin;
+
+    private double[][] rowMin;
+
+    private double[][] rowMax;
+
+    private int y = 0;
+
+    /**
+     * Sets up one grid per box size and translation, with the translations
+     * chosen as in FractalCount_ and MapFractalCount_.
+     */
+    RowStreamCounter(int mode, int width, int height, int[] boxSizes, int numOffsets) {
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.boxSizes = boxSizes.clone();
+
+        int numGrids = 0;
+        for (int boxSize : boxSizes) {
+            final int increment = Math.max(1, boxSize / numOffsets);
+            numGrids += countOffsets(boxSize, increment, width) * countOffsets(boxSize, increment, height);
+        }
+
+        gridSize = new int[numGrids];
+        gridOffsetX = new int[numGrids];
+        gridOffsetY = new int[numGrids];
+        gridFirstSize = new int[boxSizes.length + 1];
+        gridCounts = new long[numGrids];
+        occupied = mode == BINARY ? new long[numGrids][] : null;
+        columnMin = mode == SURFACE ? new double[numGrids][] : null;
+        columnMax = mode == SURFACE ? new double[numGrids][] : null;
+
+        int g = 0;
+        for (int i = 0; i < boxSizes.length; i++) {
+            final int boxSize = boxSizes[i];
+            final int increment = Math.max(1, boxSize / numOffsets);
+            gridFirstSize[i] = g;
+            for (int gridOffsetX = 0; (gridOffsetX < boxSize)
+                    && (gridOffsetX < width); gridOffsetX += increment) {
+                for (int gridOffsetY = 0; (gridOffsetY < boxSize)
+                        && (gridOffsetY < height); gridOffsetY += increment) {
+                    gridSize[g] = boxSize;
+                    this.gridOffsetX[g] = gridOffsetX;
+                    this.gridOffsetY[g] = gridOffsetY;
+
+                    final int columns = (width + gridOffsetX + boxSize - 1) / boxSize;
+                    if (mode == BINARY) {
+                        occupied[g] = new long[(columns + 63) >> 6];
+                    } else {
+                        columnMin[g] = new double[columns];
+                        columnMax[g] = new double[columns];
+                        clearColumns(g);
+                    }
+                    g++;
+                }
+            }
+        }
+        gridFirstSize[boxSizes.length] = g;
+
+        if (mode == BINARY) {
+            runStarts = new int[(width + 1) / 2 + 1];
+            runEnds = new int[runStarts.length];
+        } else {
+            int levels = 1;
+            while ((1 << levels) <= width) {
+                levels++;
+            }
+            rowMin = new double[levels][width];
+            rowMax = new double[levels][width];
+        }
+    }
+
+    private static int countOffsets(int boxSize, int increment, int length) {
+        final int limit = Math.min(boxSize, length);
+        return (limit + increment - 1) / increment;
+    }
+
+    /**
+     * Pixels with a value of at least threshold are foreground.
+     */
+    void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Settings for the SDBC count, see MapFractalCount_. When subGraph is
+     * set, min is the smallest value in the image and must be known in advance.
+     */
+    void setSurface(double zScale, boolean subGraph, double min) {
+        this.zScale = zScale;
+        this.subGraph = subGraph;
+        this.globalMin = min;
+    }
+
+    int getRowsRead() {
+        return y;
+    }
+
+    int getNumGrids() {
+        return gridSize.length;
+    }
+
+    /**
+     * Adds the next row of the image.
+     */
+    void addRow(float[] row) {
+        if (y >= height) {
+            throw new IllegalStateException("All rows have been added");
+        }
+        if (mode == BINARY) {
+            addBinaryRow(row);
+        } else {
+            addSurfaceRow(row);
+        }
+
+        for (int g = 0; g < gridSize.length; g++) {
+            if ((y + gridOffsetY[g] + 1) % gridSize[g] == 0 || y == height - 1) {
+                completeBoxRow(g);
+            }
+        }
+        y++;
+    }
+
+    private void addBinaryRow(float[] row) {
+        // Find the runs of foreground pixels once, then mark them in each grid
+        int runs = 0;
+        int x = 0;
+        while (x < width) {
+            while (x < width && row[x] < threshold) {
+                x++;
+            }
+            if (x == width) {
+                break;
+            }
+            runStarts[runs] = x;
+            while (x < width && row[x] >= threshold) {
+                x++;
+            }
+            runEnds[runs++] = x;
+        }
+        if (runs == 0) {
+            return;
+        }
+
+        for (int g = 0; g < gridSize.length; g++) {
+            final int boxSize = gridSize[g];
+            final int offset = gridOffsetX[g];
+            final long[] bits = occupied[g];
+            for (int r = 0; r < runs; r++) {
+                setBits(bits, (runStarts[r] + offset) / boxSize, (runEnds[r] - 1 + offset) / boxSize);
+            }
+        }
+    }
+
+    private static void setBits(long[] bits, int from, int to) {
+        int word = from >> 6;
+        final int lastWord = to >> 6;
+        final long firstMask = -1L << (from & 63);
+        final long lastMask = -1L >>> (63 - (to & 63));
+        if (word == lastWord) {
+            bits[word] |= firstMask & lastMask;
+            return;
+        }
+        bits[word++] |= firstMask;
+        while (word < lastWord) {
+            bits[word++] = -1L;
+        }
+        bits[lastWord] |= lastMask;
+    }
+
+    private void addSurfaceRow(float[] row) {
+        // Sparse tables of the row, so that the min/max of any run of
+        // columns is found in constant time
+        for (int x = 0; x < width; x++) {
+            final double value = zScale * row[x];
+            rowMin[0][x] = value;
+            rowMax[0][x] = value;
+        }
+        for (int level = 1; level < rowMin.length; level++) {
+            final int half = 1 << (level - 1);
+            final double[] prevMin = rowMin[level - 1], prevMax = rowMax[level - 1];
+            final double[] curMin = rowMin[level], curMax = rowMax[level];
+            for (int x = 0; x + (1 << level) <= width; x++) {
+                curMin[x] = Math.min(prevMin[x], prevMin[x + half]);
+                curMax[x] = Math.max(prevMax[x], prevMax[x + half]);
+            }
+        }
+
+        for (int g = 0; g < gridSize.length; g++) {
+            final int boxSize = gridSize[g];
+            final double[] colMin = columnMin[g], colMax = columnMax[g];
+            int xStart = 0;
+            int xEnd = boxSize - gridOffsetX[g];
+            for (int c = 0; c < colMin.length; c++) {
+                final int end = Math.min(width, xEnd);
+                final int level = 31 - Integer.numberOfLeadingZeros(end - xStart);
+                final int other = end - (1 << level);
+                final double segMin = Math.min(rowMin[level][xStart], rowMin[level][other]);
+                final double segMax = Math.max(rowMax[level][xStart], rowMax[level][other]);
+                if (segMin < colMin[c]) {
+                    colMin[c] = segMin;
+                }
+                if (segMax > colMax[c]) {
+                    colMax[c] = segMax;
+                }
+                xStart = xEnd;
+                xEnd += boxSize;
+            }
+        }
+    }
+
+    private void completeBoxRow(int g) {
+        if (mode == BINARY) {
+            final long[] bits = occupied[g];
+            long count = 0;
+            for (int i = 0; i < bits.length; i++) {
+                count += Long.bitCount(bits[i]);
+                bits[i] = 0;
+            }
+            gridCounts[g] += count;
+        } else {
+            final int boxSize = gridSize[g];
+            final double[] colMin = columnMin[g], colMax = columnMax[g];
+            long count = 0;
+            for (int c = 0; c < colMax.length; c++) {
+                final double base = subGraph ? globalMin : colMin[c];
+                count += 1 + (int) ((colMax[c] - base + 1) / boxSize);
+            }
+            gridCounts[g] += count;
+            clearColumns(g);
+        }
+    }
+
+    private void clearColumns(int g) {
+        Arrays.fill(columnMin[g], Double.POSITIVE_INFINITY);
+        Arrays.fill(columnMax[g], Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Returns the smallest count over the translations of each box size,
+     * in the order of the box sizes given to the constructor. Box rows
+     * that are not complete yet are not included.
+     */
+    long[] getBestCounts() {
+        long[] best = new long[boxSizes.length];
+        for (int i = 0; i < boxSizes.length; i++) {
+            best[i] = Long.MAX_VALUE;
+            for (int g = gridFirstSize[i]; g < gridFirstSize[i + 1]; g++) {
+                best[i] = Math.min(best[i], gridCounts[g]);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the counts of every translation of each box size, one array
+     * per size in the order of the box sizes given to the constructor.
+     */
+    long[][] getCountsBySize() {
+        long[][] counts = new long[boxSizes.length][];
+        for (int i = 0; i < boxSizes.length; i++) {
+            counts[i] = new long[gridFirstSize[i + 1] - gridFirstSize[i]];
+            System.arraycopy(gridCounts, gridFirstSize[i], counts[i], 0, counts[i].length);
+        }
+        return counts;
+    }
+}
@@ -12,6 +12,7 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.gui.PlotWindow;
 import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ij.util.Tools;
@@ -31,6 +32,7 @@ public class SBC_ implements PlugInFilter {
 	// User-changeable defaults :
 	boolean plotGraph = false;
 	boolean verboseOutput = false;
+	boolean quiet = false;
 	int maxBox = 50;
 	int minBox = 10;
 	boolean autoParam = true;
@@ -54,6 +56,7 @@ public class SBC_ implements PlugInFilter {
 
 		gd.addCheckbox("Plot results", plotGraph);
 		gd.addCheckbox("Verbose output", verboseOutput);
+		gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
 		gd.addCheckbox("Automatic box size", autoParam);
 		gd.addMessage("");
 		gd.addNumericField("Start box size", maxBox, 0);
@@ -68,6 +71,11 @@ public class SBC_ implements PlugInFilter {
 
 		plotGraph = gd.getNextBoolean();
 		verboseOutput = gd.getNextBoolean();
+		quiet = gd.getNextBoolean();
+		if (quiet) {
+			plotGraph = false;
+			verboseOutput = false;
+		}
 		autoParam = gd.getNextBoolean();
 
 		maxBox = (int) gd.getNextNumber();
@@ -184,11 +192,22 @@ public class SBC_ implements PlugInFilter {
 			double[] p = cf.getParams();
 			final String label = imRef.getTitle() + ": Dimension estimate: "
 				+ IJ.d2s(p[1], 4) + ": Settings: " + maxBox + ":" + minBox;
-			IJ.write(label);
+			if (!quiet)
+				IJ.write(label);
 
 			if (plotGraph)
 				doPlotGraph(p, boxSizes, boxCountSums);
 
+			// The curve in box sizes in pixels
+			double[] fitSizes = new double[xList.size()];
+			double[] fitCounts = new double[yList.size()];
+			for (int i = 0; i < fitSizes.length; i++) {
+				fitSizes[i] = Math.round(((Double) xList.get(i)).doubleValue() * width);
+				fitCounts[i] = ((Double) yList.get(i)).doubleValue();
+			}
+			ResultsTable rt = FitResults.add(imRef.getTitle(), fitSizes, fitCounts);
+			FitResults.show(rt);
+
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
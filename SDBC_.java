@@ -18,6 +18,7 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.gui.PlotWindow;
 import ij.measure.CurveFitter;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ij.util.Tools;
@@ -39,12 +40,16 @@ public class SDBC_ implements PlugInFilter {
 
 	boolean verboseOutput = false;
 
+	boolean quiet = false;
+
 	int maxBox = 50;
 
 	int minBox = 10;
 
 	boolean autoParam = true;
 
+	boolean adaptive = false;
+
 	public int setup(String arg, ImagePlus imp) {
 		imRef = imp;
 		if (imp == null)
@@ -65,7 +70,9 @@ public class SDBC_ implements PlugInFilter {
 
 		gd.addCheckbox("Plot results", plotGraph);
 		gd.addCheckbox("Verbose output", verboseOutput);
+		gd.addCheckbox("Quiet (no plots or log, for batch macros)", quiet);
 		gd.addCheckbox("Automatic box size (recommended)", autoParam);
+		gd.addCheckbox("Adaptive box sizes (log-spaced, stop when the fit settles; off = every size)", adaptive);
 		gd.addMessage("");
 		gd.addNumericField("Start box size", maxBox, 0);
 		gd.addNumericField("End box size", minBox, 0);
@@ -80,7 +87,13 @@ public class SDBC_ implements PlugInFilter {
 
 		plotGraph = gd.getNextBoolean();
 		verboseOutput = gd.getNextBoolean();
+		quiet = gd.getNextBoolean();
+		if (quiet) {
+			plotGraph = false;
+			verboseOutput = false;
+		}
 		autoParam = gd.getNextBoolean();
+		adaptive = gd.getNextBoolean();
 		maxBox = (int) gd.getNextNumber();
 		minBox = (int) gd.getNextNumber();
 
@@ -109,58 +122,59 @@ public class SDBC_ implements PlugInFilter {
 				}
 			}
 
-			int min = Integer.MAX_VALUE;
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					int value = ip.getPixel(x, y);
-					if (value < min)
-						min = value;
-				}
-			}
+			// Box min/max are read from an index of the image
+			GreyBoxIndex index = GreyBoxIndex.fromProcessor(ip);
 
 			// Create variables we need and set them
-			int count;
+			long count;
 			ArrayList<Double> xList = new ArrayList<Double>();
 			ArrayList<Double> yList = new ArrayList<Double>();
-			int boxZMin, boxZMax;
-
-			for (int boxSize = maxBox; boxSize >= minBox; boxSize--) {
-				count = 0;
-
-				// Inspect boxes
-				for (int i = 0; i < width; i += boxSize) {
-					int xStart = i;
-					int xEnd = Math.min(xStart + boxSize, width);
-
-					for (int j = 0; j < height; j += boxSize) {
-						int yStart = j;
-						int yEnd = Math.min(yStart + boxSize, height);
-
-						boxZMin = Integer.MAX_VALUE;
-						boxZMax = Integer.MIN_VALUE;
-
-						for (int x = xStart; x < xEnd; x++) {
-							for (int y = yStart; y < yEnd; y++) {
 
-								int zValue = ip.getPixel(x, y);
-								if (zValue < boxZMin)
-									boxZMin = zValue;
-								if (zValue > boxZMax)
-									boxZMax = zValue;
-
-							}
-						}
-						count += 1 + (int) ((double) (boxZMax - boxZMin + 1) / (double) boxSize);					
-					}
+			// Either every size from maxBox down, or log-spaced sizes that
+			// are counted until the fit settles
+			BoxSizeScheduler scheduler = null;
+			int[] sizes;
+			if (adaptive) {
+				scheduler = new BoxSizeScheduler(maxBox, minBox, width, height);
+				sizes = scheduler.getCandidates();
+			} else {
+				sizes = new int[Math.max(0, maxBox - minBox + 1)];
+				for (int i = 0; i < sizes.length; i++) {
+					sizes[i] = maxBox - i;
 				}
+			}
+
+			for (int s = 0; s < sizes.length; s++) {
+				if (scheduler != null && scheduler.isStopped())
+					break;
+				final int boxSize = sizes[s];
+				count = index.sdbcCount(boxSize);
 
 				xList.add(new Double((double) boxSize / (double) width));
 				yList.add(new Double(count));
+				if (scheduler != null)
+					scheduler.add(boxSize, count);
 				if (verboseOutput) {
 					IJ.write("Box count was " + count + " for box size " + boxSize);
 				}
 			}
 
+			if (scheduler != null) {
+				// Fit the scaling region only
+				if (!quiet) {
+					for (String line : scheduler.getReport())
+						IJ.write(line);
+				}
+				int[] regionSizes = scheduler.getSizes();
+				long[] regionCounts = scheduler.getCounts();
+				xList.clear();
+				yList.clear();
+				for (int i = 0; i < regionSizes.length; i++) {
+					xList.add(new Double((double) regionSizes[i] / (double) width));
+					yList.add(new Double(regionCounts[i]));
+				}
+			}
+
 			if (xList.size() == 0) {
 				IJ.write("\nError: No boxes!\nMake sure that starting and ending box size and "
 						+ "\nreduction rate allow for at least one box size to exist!");
@@ -183,12 +197,25 @@ public class SDBC_ implements PlugInFilter {
 			cf.doFit(CurveFitter.STRAIGHT_LINE);
 			double[] p = cf.getParams();
 			String label = imRef.getTitle() + ": Dimension estimate: " + IJ.d2s(p[1], 4) 
-								+ ": Settings: " + maxBox + ":" + minBox;
-			IJ.write(label);
+								+ ": Settings: " + maxBox + ":" + minBox
+								+ ": Box sizes: " + (adaptive ? "adaptive" : "every size");
+			if (!quiet)
+				IJ.write(label);
 
 			if (plotGraph)
 				doPlotGraph(p, boxSizes, boxCounts);
 
+			// The curve in box sizes in pixels
+			double[] fitSizes = new double[xList.size()];
+			double[] fitCounts = new double[yList.size()];
+			for (int i = 0; i < fitSizes.length; i++) {
+				fitSizes[i] = Math.round(xList.get(i) * width);
+				fitCounts[i] = yList.get(i);
+			}
+			ResultsTable rt = FitResults.add(imRef.getTitle(), fitSizes, fitCounts);
+			rt.addValue("Adaptive", adaptive ? 1 : 0);
+			FitResults.show(rt);
+
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,158 @@
+/*
+ * Splits a binary image into tiles and counts them in separate worker JVMs
+ * (see TileWorker). The tiles are handed over as files in a temporary
+ * directory, and the partial counts are merged so that the result is the
+ * same as counting the whole image in one process.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+class ShardedBoxCount {
+
+    private static final int MIN_TILE_SIZE = 64;
+
+    private static final int TILES_PER_WORKER = 4;
+
+    private ShardedBoxCount() {
+    }
+
+    /**
+     * Returns the count of every grid of grids, counted by the given number
+     * of worker processes.
+     */
+    static long[] count(BinaryVolume volume, BoxGrids grids, int workers, boolean verbose) throws IOException {
+        final int width = volume.getWidth();
+        final int height = volume.getHeight();
+        final int depth = volume.getDepth();
+        final int tileSize = tileSize(width, height, depth, workers);
+        final int tileDepth = depth > 1 ? tileSize : 1;
+
+        File dir = createTempDir();
+        List<File> jobs = new ArrayList<File>();
+        List<File> results = new ArrayList<File>();
+        try {
+            for (int z0 = 0; z0 < depth; z0 += tileDepth) {
+                for (int y0 = 0; y0 < height; y0 += tileSize) {
+                    for (int x0 = 0; x0 < width; x0 += tileSize) {
+                        File job = new File(dir, "tile" + jobs.size() + ".job");
+                        TileWorker.writeJob(job, volume, x0, y0, z0, Math.min(tileSize, width - x0),
+                                Math.min(tileSize, height - y0), Math.min(tileDepth, depth - z0), grids);
+                        jobs.add(job);
+                        results.add(new File(dir, "tile" + results.size() + ".result"));
+                    }
+                }
+            }
+
+            if (verbose) {
+                IJ.log("Counting " + jobs.size() + " tiles of " + tileSize + " pixels in "
+                        + Math.min(workers, jobs.size()) + " worker processes");
+            }
+            runWorkers(jobs, results, workers);
+
+            TilePartial[] partials = new TilePartial[results.size()];
+            for (int i = 0; i < partials.length; i++) {
+                partials[i] = TilePartial.read(results.get(i));
+            }
+            return TilePartial.merge(partials);
+        } finally {
+            for (File file : jobs) {
+                file.delete();
+            }
+            for (File file : results) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static int tileSize(int width, int height, int depth, int workers) {
+        final double pixels = (double) width * height * depth;
+        final double dims = depth > 1 ? 3 : 2;
+        final int size = (int) Math.ceil(Math.pow(pixels / (TILES_PER_WORKER * workers), 1 / dims));
+        return Math.max(MIN_TILE_SIZE, size);
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("fractalcount", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create temporary directory " + dir);
+        }
+        return dir;
+    }
+
+    private static void runWorkers(List<File> jobs, List<File> results, int workers) throws IOException {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final String classPath = classPathOf(TileWorker.class) + File.pathSeparator + classPathOf(IJ.class);
+        final int numWorkers = Math.min(workers, jobs.size());
+
+        Process[] processes = new Process[numWorkers];
+        try {
+            for (int w = 0; w < numWorkers; w++) {
+                List<String> command = new ArrayList<String>();
+                command.add(java);
+                command.add("-cp");
+                command.add(classPath);
+                command.add(TileWorker.class.getName());
+                for (int i = w; i < jobs.size(); i += numWorkers) {
+                    command.add(jobs.get(i).getPath());
+                    command.add(results.get(i).getPath());
+                }
+                ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectErrorStream(true);
+                processes[w] = builder.start();
+                drain(processes[w].getInputStream());
+            }
+
+            for (int w = 0; w < numWorkers; w++) {
+                final int exitCode = processes[w].waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker process " + (w + 1) + " failed with exit code " + exitCode);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for the worker processes");
+        } finally {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    private static String classPathOf(Class<?> c) throws IOException {
+        try {
+            return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            throw new IOException("Could not find the class path of " + c.getName());
+        }
+    }
+
+    private static void drain(final InputStream in) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        if (n > 0) {
+                            System.err.write(buffer, 0, n);
+                        }
+                    }
+                } catch (IOException e) {
+                    // the worker has exited
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * SplitMix64 random numbers (Steele, Lea and Flood, "Fast splittable
+ * pseudorandom number generators", OOPSLA 2014).
+ *
+ * A generator is cheap, not shared between threads, and split() gives a
+ * new generator whose stream is independent of the parent's. Splitting
+ * from one seed in a fixed order gives the same numbers however the work
+ * is later spread over threads.
+ *
+ * Free Software in the Public domain.
+ */
+
+class SplitMix64 {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    SplitMix64(long seed) {
+        state = seed;
+    }
+
+    long nextLong() {
+        long z = (state += GOLDEN_GAMMA);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A number in 0 .. bound - 1, from the high 32 bits of the next long
+     * scaled by multiplication instead of a division.
+     */
+    int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * A new generator, seeded from this one.
+     */
+    SplitMix64 split() {
+        return new SplitMix64(nextLong());
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Estimates the fractal dimension of a 2D image file that is too large to
+ * open, by the binary box count of FractalCount_ or the SDBC count of
+ * MapFractalCount_. The file is never opened as an image: its rows are read
+ * one at a time, top to bottom, into the counts of all grids at once, so
+ * memory grows with the width of the image and the number of grids, not
+ * with its size.
+ *
+ * The file must be an uncompressed single image TIFF, 8, 16 or 32-bit
+ * greyscale; strips are followed in file order. The threshold is on the raw
+ * values, as in FractalCount_; the surface count uses the calibrated values,
+ * as in MapFractalCount_.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
+public class StreamFractalCount_ implements PlugIn {
+
+    private static final String[] ESTIMATORS = {"Binary box count", "SDBC (maps)"};
+
+    private static final int AUTO_DIV = 4;
+
+    // Automatic settings of FractalCount_ and MapFractalCount_
+    private static final int BINARY_MIN_BOX = 6;
+
+    private static final int BINARY_OFFSETS = 3;
+
+    private static final int SURFACE_MIN_BOX = 2;
+
+    private static final int SURFACE_OFFSETS = 1;
+
+    // User-changeable defaults:
+    private int estimator = 0;
+
+    private double threshold = 70;
+
+    private double zScale = 1.0;
+
+    private boolean subGraph = true;
+
+    private boolean autoParam = true;
+
+    private int maxBox = 24;
+
+    private int minBox = BINARY_MIN_BOX;
+
+    private double divBox = 1.2;
+
+    private int numOffsets = BINARY_OFFSETS;
+
+    private boolean quiet = false;
+
+    public void run(String arg) {
+        if (arg.equals("about")) {
+            showAbout();
+            return;
+        }
+
+        OpenDialog od = new OpenDialog("Stream image file", null);
+        if (od.getFileName() == null) {
+            return;
+        }
+        final File file = new File(od.getDirectory(), od.getFileName());
+
+        FileInfo fi;
+        try {
+            fi = RowSource.readFileInfo(file);
+        } catch (IOException e) {
+            IJ.log("\nError: Could not read " + file + ": " + e.getMessage());
+            return;
+        }
+        if (fi == null) {
+            IJ.log("\nError: " + file.getName() + " is not an uncompressed single image greyscale TIFF.");
+            return;
+        }
+
+        if (!getParams(fi)) {
+            return;
+        }
+        final boolean binary = estimator == 0;
+        if (autoParam) {
+            maxBox = Math.max(fi.width, fi.height) / AUTO_DIV;
+            minBox = Math.min(binary ? BINARY_MIN_BOX : SURFACE_MIN_BOX, maxBox);
+            numOffsets = binary ? BINARY_OFFSETS : SURFACE_OFFSETS;
+        }
+        final int[] sizes = binary ? FractalCount_.getBoxSizes(maxBox, minBox, divBox) : everySize(maxBox, minBox);
+        if (sizes.length < 2) {
+            IJ.log("\nError: Fewer than two box sizes!\nMake sure that starting and ending box size and "
+                    + "\nreduction rate allow for at least two box sizes to exist!");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long[] counts;
+        try {
+            counts = binary ? countBinary(fi, sizes) : countSurface(fi, sizes);
+        } catch (IOException e) {
+            IJ.log("\nError: Could not read the image rows: " + e.getMessage());
+            return;
+        }
+
+        double[] fitSizes = new double[sizes.length];
+        double[] fitCounts = new double[sizes.length];
+        double[] logSizes = new double[sizes.length];
+        double[] logCounts = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            fitSizes[i] = sizes[i];
+            fitCounts[i] = counts[i];
+            logSizes[i] = -Math.log(sizes[i]);
+            logCounts[i] = Math.log(counts[i]);
+        }
+        final String label = file.getName() + ": " + ESTIMATORS[estimator];
+        ResultsTable rt = FitResults.add(label, fitSizes, fitCounts);
+        rt.addValue("Translations", numOffsets);
+        FitResults.show(rt);
+
+        if (!quiet) {
+            IJ.log(label + ": Dimension estimate: " + IJ.d2s(LineFit.slope(logSizes, logCounts, sizes.length), 4)
+                    + ": Settings: " + maxBox + ":" + minBox + (binary ? ":" + divBox : "") + ":" + numOffsets);
+            IJ.log("Streamed " + fi.height + " rows of " + fi.width + " pixels in "
+                    + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        }
+    }
+
+    private boolean getParams(FileInfo fi) {
+        GenericDialog gd = new GenericDialog("Stream " + fi.fileName);
+
+        gd.addChoice("Estimator", ESTIMATORS, ESTIMATORS[estimator]);
+        gd.addNumericField("Threshold (binary)", threshold, fi.fileType == FileInfo.GRAY32_FLOAT ? 3 : 0);
+        gd.addNumericField("Scale z-axis by (SDBC)", zScale, 1);
+        gd.addCheckbox("Include subgraph (SDBC)", subGraph);
+        gd.addCheckbox("Automatic box sizes and translations", autoParam);
+        gd.addNumericField("Start box size", maxBox, 0);
+        gd.addNumericField("Min box size", minBox, 0);
+        gd.addNumericField("Box division factor (binary)", divBox, 1);
+        gd.addNumericField("Number of translations", numOffsets, 0);
+        gd.addCheckbox("Quiet (no log, for batch macros)", quiet);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            return false;
+        }
+
+        estimator = gd.getNextChoiceIndex();
+        threshold = gd.getNextNumber();
+        zScale = gd.getNextNumber();
+        subGraph = gd.getNextBoolean();
+        autoParam = gd.getNextBoolean();
+        maxBox = (int) gd.getNextNumber();
+        minBox = (int) gd.getNextNumber();
+        divBox = gd.getNextNumber();
+        numOffsets = (int) gd.getNextNumber();
+        quiet = gd.getNextBoolean();
+
+        if (divBox <= 1) {
+            IJ.log("Box division factor must be larger than 1. Please select another value");
+            return false;
+        }
+        if (!autoParam && (minBox < 1 || numOffsets < 1)) {
+            IJ.log("Min box size and number of translations must be at least 1. Please select other values");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Every size from maxBox down to minBox, as MapFractalCount_ counts them.
+     */
+    private static int[] everySize(int maxBox, int minBox) {
+        int[] sizes = new int[Math.max(0, maxBox - minBox + 1)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = maxBox - i;
+        }
+        return sizes;
+    }
+
+    private long[] countBinary(FileInfo fi, int[] sizes) throws IOException {
+        RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.BINARY, fi.width, fi.height,
+                sizes, numOffsets);
+        counter.setThreshold(threshold);
+        stream(fi, false, counter);
+        return counter.getBestCounts();
+    }
+
+    /**
+     * With the subgraph, the smallest value is found in a first pass over
+     * the file.
+     */
+    private long[] countSurface(FileInfo fi, int[] sizes) throws IOException {
+        double min = 0;
+        if (subGraph) {
+            min = Double.POSITIVE_INFINITY;
+            float[] row = new float[fi.width];
+            RowSource source = RowSource.open(fi, true);
+            try {
+                for (int y = 0; y < fi.height; y++) {
+                    source.nextRow(row);
+                    for (int x = 0; x < fi.width; x++) {
+                        min = Math.min(min, row[x]);
+                    }
+                }
+            } finally {
+                source.close();
+            }
+        }
+
+        RowStreamCounter counter = new RowStreamCounter(RowStreamCounter.SURFACE, fi.width, fi.height,
+                sizes, numOffsets);
+        counter.setSurface(zScale, subGraph, min);
+        stream(fi, true, counter);
+        return counter.getBestCounts();
+    }
+
+    private void stream(FileInfo fi, boolean calibrated, RowStreamCounter counter) throws IOException {
+        if (!quiet) {
+            IJ.log("Streaming " + fi.height + " rows of " + fi.fileName + " into " + counter.getNumGrids() + " grids");
+        }
+        RowSource source = RowSource.open(fi, calibrated);
+        try {
+            FractalCount_.streamRows(source, counter);
+        } finally {
+            source.close();
+        }
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About StreamFractalCount..",
+                "This plugin estimates the fractal dimension of a 2D TIFF file row by row,\n"
+                        + "without opening it, for images too large to fit in memory.");
+    }
+}
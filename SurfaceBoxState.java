@@ -0,0 +1,230 @@
+/*
+ * Per box min/max of every grid of an SDBC count, kept between runs of
+ * MapFractalCount_ so that an edit only recounts the boxes it touches.
+ *
+ * The edited region is found by comparing tile checksums of the image with
+ * those of the previous run, which still reads every pixel once (see
+ * TileChecksums). The boxes that intersect the region are read again and
+ * the counts are patched. With the subgraph, the box counts
+ * depend on the smallest value in the image; this is kept per tile, and if
+ * it changes the counts are recomputed from the stored box maxima, without
+ * reading any pixels.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class SurfaceBoxState {
+
+    private static final int MAX_IMAGES = 4;
+
+    private static final int TILE_SIZE = TileChecksums.TILE_SIZE;
+
+    private static final Map<Integer, SurfaceBoxState> states = new LinkedHashMap<Integer, SurfaceBoxState>(8, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, SurfaceBoxState> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    private final int width;
+
+    private final int height;
+
+    private final double zScale;
+
+    private final boolean subGraph;
+
+    private final int numOffsets;
+
+    // The counts are of calibrated values, so a new calibration starts over
+    private final float[] cTable;
+
+    private final BoxGrids grids;
+
+    private final double[][] boxMin;
+
+    private final double[][] boxMax;
+
+    private final long[] gridCounts;
+
+    private final int tilesX;
+
+    private final float[] tileMin;
+
+    private float min;
+
+    private TileChecksums checksums;
+
+    private SurfaceBoxState(ImageProcessor ip, double zScale, boolean subGraph, int[] boxSizes, int numOffsets) {
+        width = ip.getWidth();
+        height = ip.getHeight();
+        this.zScale = zScale;
+        this.subGraph = subGraph;
+        this.numOffsets = numOffsets;
+        final float[] table = ip.getCalibrationTable();
+        cTable = table == null ? null : table.clone();
+        grids = new BoxGrids(boxSizes, numOffsets, width, height, 1);
+        checksums = checksums(ip);
+
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tileMin = new float[tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE)];
+        updateTileMin(ip, 0, 0, width, height);
+
+        final int numGrids = grids.getNumGrids();
+        boxMin = new double[numGrids][];
+        boxMax = new double[numGrids][];
+        gridCounts = new long[numGrids];
+        for (int g = 0; g < numGrids; g++) {
+            final int[] boxes = boxesPerAxis(g);
+            boxMin[g] = new double[boxes[0] * boxes[1]];
+            boxMax[g] = new double[boxes[0] * boxes[1]];
+            recount(ip, g, 0, 0, width, height, true);
+        }
+    }
+
+    /**
+     * Returns the state of the image with the given ID, brought up to date
+     * with ip, or a new state if there is none for these settings.
+     * changed receives the region that was recounted, or null if the
+     * whole image was counted or nothing changed.
+     */
+    static synchronized SurfaceBoxState update(int imageID, ImageProcessor ip, double zScale, boolean subGraph,
+                                               int[] boxSizes, int numOffsets, int[][] changed) {
+        changed[0] = null;
+        SurfaceBoxState state = states.get(imageID);
+        if (state != null && state.matches(ip, zScale, subGraph, boxSizes, numOffsets)) {
+            changed[0] = state.update(ip);
+            return state;
+        }
+        state = new SurfaceBoxState(ip, zScale, subGraph, boxSizes, numOffsets);
+        states.put(imageID, state);
+        return state;
+    }
+
+    static synchronized void remove(int imageID) {
+        states.remove(imageID);
+    }
+
+    BoxGrids getGrids() {
+        return grids;
+    }
+
+    long[] getGridCounts() {
+        return gridCounts.clone();
+    }
+
+    private boolean matches(ImageProcessor ip, double zScale, boolean subGraph, int[] boxSizes, int numOffsets) {
+        return this.zScale == zScale && this.subGraph == subGraph && this.numOffsets == numOffsets
+                && Arrays.equals(grids.getBoxSizes(), boxSizes)
+                && ip.getWidth() == width && ip.getHeight() == height
+                && Arrays.equals(cTable, ip.getCalibrationTable());
+    }
+
+    private int[] update(ImageProcessor ip) {
+        TileChecksums current = checksums(ip);
+        int[] region = current.changedRegion(checksums);
+        checksums = current;
+        if (region == null) {
+            return null;
+        }
+
+        final float oldMin = min;
+        updateTileMin(ip, region[0], region[1], region[3], region[4]);
+        final boolean minChanged = subGraph && min != oldMin;
+
+        for (int g = 0; g < grids.getNumGrids(); g++) {
+            recount(ip, g, region[0], region[1], region[3], region[4], false);
+            if (minChanged) {
+                gridCounts[g] = 0;
+                for (int b = 0; b < boxMax[g].length; b++) {
+                    gridCounts[g] += boxes(g, b);
+                }
+            }
+        }
+        return region;
+    }
+
+    private static TileChecksums checksums(ImageProcessor ip) {
+        return new TileChecksums(ip.getWidth(), ip.getHeight(), new Object[]{ip.getPixels()});
+    }
+
+    private void updateTileMin(ImageProcessor ip, int x0, int y0, int x1, int y1) {
+        for (int ty = y0 / TILE_SIZE; ty <= (y1 - 1) / TILE_SIZE; ty++) {
+            for (int tx = x0 / TILE_SIZE; tx <= (x1 - 1) / TILE_SIZE; tx++) {
+                float value = Float.MAX_VALUE;
+                for (int y = ty * TILE_SIZE; y < Math.min(height, (ty + 1) * TILE_SIZE); y++) {
+                    for (int x = tx * TILE_SIZE; x < Math.min(width, (tx + 1) * TILE_SIZE); x++) {
+                        value = Math.min(value, ip.getPixelValue(x, y));
+                    }
+                }
+                tileMin[ty * tilesX + tx] = value;
+            }
+        }
+
+        min = Float.MAX_VALUE;
+        for (float value : tileMin) {
+            min = Math.min(min, value);
+        }
+    }
+
+    private int[] boxesPerAxis(int g) {
+        final int boxSize = grids.getSize(g);
+        return new int[]{
+                (width + grids.getOffsetX(g) + boxSize - 1) / boxSize,
+                (height + grids.getOffsetY(g) + boxSize - 1) / boxSize};
+    }
+
+    /**
+     * SDBC count of the column of box b of grid g.
+     */
+    private int boxes(int g, int b) {
+        final double base = subGraph ? min : boxMin[g][b];
+        return 1 + (int) ((boxMax[g][b] - base + 1) / grids.getSize(g));
+    }
+
+    /**
+     * Reads the boxes of grid g that intersect [x0, x1) x [y0, y1) and
+     * patches the count.
+     */
+    private void recount(ImageProcessor ip, int g, int x0, int y0, int x1, int y1, boolean first) {
+        final int boxSize = grids.getSize(g);
+        final int offsetX = grids.getOffsetX(g);
+        final int offsetY = grids.getOffsetY(g);
+        final int boxesX = boxesPerAxis(g)[0];
+
+        for (int by = (y0 + offsetY) / boxSize; by <= (y1 - 1 + offsetY) / boxSize; by++) {
+            final int yStart = Math.max(0, by * boxSize - offsetY);
+            final int yEnd = Math.min(height, (by + 1) * boxSize - offsetY);
+
+            for (int bx = (x0 + offsetX) / boxSize; bx <= (x1 - 1 + offsetX) / boxSize; bx++) {
+                final int xStart = Math.max(0, bx * boxSize - offsetX);
+                final int xEnd = Math.min(width, (bx + 1) * boxSize - offsetX);
+                final int b = by * boxesX + bx;
+
+                if (!first) {
+                    gridCounts[g] -= boxes(g, b);
+                }
+
+                double boxZMin = Double.POSITIVE_INFINITY;
+                double boxZMax = Double.NEGATIVE_INFINITY;
+                for (int y = yStart; y < yEnd; y++) {
+                    for (int x = xStart; x < xEnd; x++) {
+                        final double zValue = zScale * ip.getPixelValue(x, y);
+                        if (zValue < boxZMin)
+                            boxZMin = zValue;
+                        if (zValue > boxZMax)
+                            boxZMax = zValue;
+                    }
+                }
+                boxMin[g][b] = boxZMin;
+                boxMax[g][b] = boxZMax;
+                gridCounts[g] += boxes(g, b);
+            }
+        }
+    }
+}
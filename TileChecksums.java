@@ -0,0 +1,120 @@
+/*
+ * Checksums of the 32 x 32 pixel tiles of an image or stack, used to find
+ * the region that was edited between two runs of a plugin.
+ *
+ * Every update hashes every pixel, so finding the edited region still takes
+ * one pass over the image; only the recount is limited to that region.
+ * ImageJ does not say which pixels an update changed (imageUpdated has no
+ * rectangle), and the ROI is no bound on it: the pencil and brush ignore
+ * it, and Clear Outside writes outside it. Hashing only the ROI tiles
+ * would miss such edits and leave the counts wrong.
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.util.Arrays;
+
+class TileChecksums {
+
+    static final int TILE_SIZE = 32;
+
+    private final int width;
+
+    private final int height;
+
+    private final int depth;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    private final long[] sums;
+
+    /**
+     * Computes the checksums of the slices, each a byte[], short[], float[]
+     * or int[] pixel array of width x height.
+     */
+    TileChecksums(int width, int height, Object[] slices) {
+        this.width = width;
+        this.height = height;
+        this.depth = slices.length;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        sums = new long[tilesX * tilesY * depth];
+        Arrays.fill(sums, 0xcbf29ce484222325L);
+
+        for (int z = 0; z < depth; z++) {
+            final Object pixels = slices[z];
+            for (int y = 0; y < height; y++) {
+                final int ty = y / TILE_SIZE;
+                final int yPart = y * width;
+                for (int tx = 0; tx < tilesX; tx++) {
+                    final int tile = (z * tilesY + ty) * tilesX + tx;
+                    final int xEnd = Math.min(width, (tx + 1) * TILE_SIZE);
+                    sums[tile] = hashRun(sums[tile], pixels, yPart + tx * TILE_SIZE, yPart + xEnd);
+                }
+            }
+        }
+    }
+
+    private static long hashRun(long hash, Object pixels, int from, int to) {
+        if (pixels instanceof byte[]) {
+            final byte[] values = (byte[]) pixels;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ values[i]) * 0x100000001b3L;
+            }
+        } else if (pixels instanceof short[]) {
+            final short[] values = (short[]) pixels;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ values[i]) * 0x100000001b3L;
+            }
+        } else if (pixels instanceof float[]) {
+            final float[] values = (float[]) pixels;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ Float.floatToIntBits(values[i])) * 0x100000001b3L;
+            }
+        } else {
+            final int[] values = (int[]) pixels;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ values[i]) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    boolean sameSize(TileChecksums other) {
+        return width == other.width && height == other.height && depth == other.depth;
+    }
+
+    /**
+     * Returns the bounding box {x0, y0, z0, x1, y1, z1} (upper bounds
+     * exclusive) of the tiles that differ from other, or null if none do.
+     * The checksums must be of images of the same size.
+     */
+    int[] changedRegion(TileChecksums other) {
+        int[] region = null;
+        for (int z = 0; z < depth; z++) {
+            for (int ty = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    final int tile = (z * tilesY + ty) * tilesX + tx;
+                    if (sums[tile] == other.sums[tile]) {
+                        continue;
+                    }
+                    final int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+                    final int x1 = Math.min(width, x0 + TILE_SIZE), y1 = Math.min(height, y0 + TILE_SIZE);
+                    if (region == null) {
+                        region = new int[]{x0, y0, z, x1, y1, z + 1};
+                    } else {
+                        region[0] = Math.min(region[0], x0);
+                        region[1] = Math.min(region[1], y0);
+                        region[2] = Math.min(region[2], z);
+                        region[3] = Math.max(region[3], x1);
+                        region[4] = Math.max(region[4], y1);
+                        region[5] = Math.max(region[5], z + 1);
+                    }
+                }
+            }
+        }
+        return region;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Mergeable partial box counts of one tile of a binary image.
+ *
+ * For every grid, a tile reports the number of occupied boxes that lie
+ * entirely inside the tile, and the global index of each occupied box that
+ * crosses the tile edge. Boxes crossing an edge are seen by several tiles,
+ * so they are merged as a set and are counted once.
+ *
+ * File format (big-endian, as written by DataOutputStream):
+ *   int magic, int version, int numGrids,
+ *   then per grid: long interiorCount, int numKeys, long[numKeys] keys
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+class TilePartial {
+
+    private static final int MAGIC = 0x46435450; // "FCTP"
+
+    private static final int VERSION = 1;
+
+    private final long[] interiorCounts;
+
+    private final long[][] boundaryKeys;
+
+    TilePartial(long[] interiorCounts, long[][] boundaryKeys) {
+        this.interiorCounts = interiorCounts;
+        this.boundaryKeys = boundaryKeys;
+    }
+
+    int getNumGrids() {
+        return interiorCounts.length;
+    }
+
+    /**
+     * Index of a box in the whole grid, used to recognise the same box in
+     * different tiles.
+     */
+    static long boxKey(int boxX, int boxY, int boxZ, int boxesX, int boxesY) {
+        return boxX + (long) boxesX * (boxY + (long) boxesY * boxZ);
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(interiorCounts.length);
+            for (int g = 0; g < interiorCounts.length; g++) {
+                out.writeLong(interiorCounts[g]);
+                out.writeInt(boundaryKeys[g].length);
+                for (long key : boundaryKeys[g]) {
+                    out.writeLong(key);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static TilePartial read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a tile result: " + file);
+            }
+            final int numGrids = in.readInt();
+            long[] interiorCounts = new long[numGrids];
+            long[][] boundaryKeys = new long[numGrids][];
+            for (int g = 0; g < numGrids; g++) {
+                interiorCounts[g] = in.readLong();
+                boundaryKeys[g] = new long[in.readInt()];
+                for (int k = 0; k < boundaryKeys[g].length; k++) {
+                    boundaryKeys[g][k] = in.readLong();
+                }
+            }
+            return new TilePartial(interiorCounts, boundaryKeys);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Merges the partial counts of tiles that cover the image without
+     * overlap into the count of each grid.
+     */
+    static long[] merge(TilePartial[] partials) {
+        final int numGrids = partials[0].getNumGrids();
+        long[] counts = new long[numGrids];
+
+        for (int g = 0; g < numGrids; g++) {
+            int numKeys = 0;
+            for (TilePartial partial : partials) {
+                counts[g] += partial.interiorCounts[g];
+                numKeys += partial.boundaryKeys[g].length;
+            }
+
+            long[] keys = new long[numKeys];
+            int n = 0;
+            for (TilePartial partial : partials) {
+                System.arraycopy(partial.boundaryKeys[g], 0, keys, n, partial.boundaryKeys[g].length);
+                n += partial.boundaryKeys[g].length;
+            }
+            Arrays.sort(keys);
+            for (int k = 0; k < numKeys; k++) {
+                if (k == 0 || keys[k] != keys[k - 1]) {
+                    counts[g]++;
+                }
+            }
+        }
+        return counts;
+    }
+}
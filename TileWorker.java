@@ -0,0 +1,194 @@
+/*
+ * Counts the boxes of one or more tiles of a binary image, for the sharded
+ * box count of FractalCount_. Runs in its own JVM:
+ *
+ *   java TileWorker job1 result1 [job2 result2 ...]
+ *
+ * Job file format (big-endian, as written by DataOutputStream):
+ *   int magic, int version,
+ *   int width, int height, int depth         (whole image)
+ *   int x0, int y0, int z0, int tileWidth, int tileHeight, int tileDepth
+ *   int numGrids, then per grid: int boxSize, int offsetX, int offsetY, int offsetZ
+ *   then the tile pixels, one bit per pixel, each row packed into
+ *   (tileWidth + 63) / 64 longs, rows in y then z order
+ *
+ * Free Software in the Public domain.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class TileWorker {
+
+    private static final int MAGIC = 0x46435446; // "FCTF"
+
+    private static final int VERSION = 1;
+
+    public static void main(String[] args) {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.err.println("Usage: java TileWorker job result [job result ...]");
+            System.exit(2);
+        }
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                runJob(new File(args[i]), new File(args[i + 1]));
+            }
+        } catch (IOException e) {
+            System.err.println("TileWorker: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void runJob(File job, File result) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(job)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a tile job: " + job);
+            }
+            final int width = in.readInt(), height = in.readInt(), depth = in.readInt();
+            final int x0 = in.readInt(), y0 = in.readInt(), z0 = in.readInt();
+            final int tileWidth = in.readInt(), tileHeight = in.readInt(), tileDepth = in.readInt();
+
+            final int numGrids = in.readInt();
+            int[] size = new int[numGrids], offsetX = new int[numGrids];
+            int[] offsetY = new int[numGrids], offsetZ = new int[numGrids];
+            for (int g = 0; g < numGrids; g++) {
+                size[g] = in.readInt();
+                offsetX[g] = in.readInt();
+                offsetY[g] = in.readInt();
+                offsetZ[g] = in.readInt();
+            }
+            BoxGrids grids = new BoxGrids(size, offsetX, offsetY, offsetZ);
+
+            BinaryVolume tile = new BinaryVolume(tileWidth, tileHeight, tileDepth);
+            final int words = (tileWidth + 63) >> 6;
+            for (int z = 0; z < tileDepth; z++) {
+                for (int y = 0; y < tileHeight; y++) {
+                    for (int w = 0; w < words; w++) {
+                        long bits = in.readLong();
+                        while (bits != 0) {
+                            tile.set((w << 6) + Long.numberOfTrailingZeros(bits), y, z);
+                            bits &= bits - 1;
+                        }
+                    }
+                }
+            }
+
+            countTile(tile, x0, y0, z0, width, height, depth, grids).write(result);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the job for the tile of volume at (x0, y0, z0).
+     */
+    static void writeJob(File job, BinaryVolume volume, int x0, int y0, int z0,
+                         int tileWidth, int tileHeight, int tileDepth, BoxGrids grids) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(job)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(volume.getWidth());
+            out.writeInt(volume.getHeight());
+            out.writeInt(volume.getDepth());
+            out.writeInt(x0);
+            out.writeInt(y0);
+            out.writeInt(z0);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            out.writeInt(tileDepth);
+
+            out.writeInt(grids.getNumGrids());
+            for (int g = 0; g < grids.getNumGrids(); g++) {
+                out.writeInt(grids.getSize(g));
+                out.writeInt(grids.getOffsetX(g));
+                out.writeInt(grids.getOffsetY(g));
+                out.writeInt(grids.getOffsetZ(g));
+            }
+
+            for (int z = 0; z < tileDepth; z++) {
+                for (int y = 0; y < tileHeight; y++) {
+                    for (int x = 0; x < tileWidth; x += 64) {
+                        long bits = 0;
+                        final int end = Math.min(64, tileWidth - x);
+                        for (int b = 0; b < end; b++) {
+                            if (volume.get(x0 + x + b, y0 + y, z0 + z)) {
+                                bits |= 1L << b;
+                            }
+                        }
+                        out.writeLong(bits);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Counts the boxes of each grid that hold foreground inside the tile.
+     * The tile is at (x0, y0, z0) in an image of width x height x depth.
+     */
+    static TilePartial countTile(BinaryVolume tile, int x0, int y0, int z0,
+                                 int width, int height, int depth, BoxGrids grids) {
+        final int x1 = x0 + tile.getWidth(), y1 = y0 + tile.getHeight(), z1 = z0 + tile.getDepth();
+        final int numGrids = grids.getNumGrids();
+        long[] interiorCounts = new long[numGrids];
+        long[][] boundaryKeys = new long[numGrids][];
+        long[] keys = new long[64];
+
+        for (int g = 0; g < numGrids; g++) {
+            final int boxSize = grids.getSize(g);
+            final int offsetX = grids.getOffsetX(g);
+            final int offsetY = grids.getOffsetY(g);
+            final int offsetZ = grids.getOffsetZ(g);
+            final int boxesX = (width + offsetX + boxSize - 1) / boxSize;
+            final int boxesY = (height + offsetY + boxSize - 1) / boxSize;
+            int numKeys = 0;
+
+            for (int bz = (z0 + offsetZ) / boxSize; bz <= (z1 - 1 + offsetZ) / boxSize; bz++) {
+                final int zStart = Math.max(0, bz * boxSize - offsetZ);
+                final int zEnd = Math.min(depth, (bz + 1) * boxSize - offsetZ);
+                final boolean zInside = zStart >= z0 && zEnd <= z1;
+
+                for (int by = (y0 + offsetY) / boxSize; by <= (y1 - 1 + offsetY) / boxSize; by++) {
+                    final int yStart = Math.max(0, by * boxSize - offsetY);
+                    final int yEnd = Math.min(height, (by + 1) * boxSize - offsetY);
+                    final boolean yzInside = zInside && yStart >= y0 && yEnd <= y1;
+
+                    for (int bx = (x0 + offsetX) / boxSize; bx <= (x1 - 1 + offsetX) / boxSize; bx++) {
+                        final int xStart = Math.max(0, bx * boxSize - offsetX);
+                        final int xEnd = Math.min(width, (bx + 1) * boxSize - offsetX);
+
+                        if (!tile.anyInBox(Math.max(xStart, x0) - x0, Math.max(yStart, y0) - y0,
+                                Math.max(zStart, z0) - z0, Math.min(xEnd, x1) - x0,
+                                Math.min(yEnd, y1) - y0, Math.min(zEnd, z1) - z0)) {
+                            continue;
+                        }
+                        if (yzInside && xStart >= x0 && xEnd <= x1) {
+                            interiorCounts[g]++;
+                        } else {
+                            if (numKeys == keys.length) {
+                                long[] grown = new long[2 * keys.length];
+                                System.arraycopy(keys, 0, grown, 0, numKeys);
+                                keys = grown;
+                            }
+                            keys[numKeys++] = TilePartial.boxKey(bx, by, bz, boxesX, boxesY);
+                        }
+                    }
+                }
+            }
+
+            boundaryKeys[g] = new long[numKeys];
+            System.arraycopy(keys, 0, boundaryKeys[g], 0, numKeys);
+        }
+        return new TilePartial(interiorCounts, boundaryKeys);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Estimates the fractal dimension of every frame of a 2D+t or 3D+t
+ * hyperstack, by the binary box count of FractalCount_ or, for 2D frames,
+ * the SDBC count of MapFractalCount_.
+ *
+ * Frames are read, counted and written by a FramePipeline, so only a few
+ * frames are in memory at a time and virtual stacks of any length can be
+ * counted. Each frame adds a row to the Results table (see FitResults).
+ * A stack that is not a hyperstack is taken as one 2D frame per slice.
+ *
+ * Free Software in the Public domain.
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+
+public class TimeLapseFractalCount_ implements PlugInFilter {
+
+    private static final String[] ESTIMATORS = {"Binary box count", "SDBC (maps, 2D frames)"};
+
+    private static final int AUTO_DIV = 4;
+
+    private static final int DEFAULT_MIN_BOX = 2;
+
+    private ImagePlus imRef;
+
+    private boolean noGo = false;
+
+    // User-changeable defaults:
+    private int estimator = 0;
+
+    private double threshold = 70;
+
+    private double zScale = 1.0;
+
+    private boolean subGraph = true;
+
+    private boolean autoParam = true;
+
+    private int maxBox = 24;
+
+    private int minBox = DEFAULT_MIN_BOX;
+
+    private double divBox = 1.2;
+
+    private int numOffsets = 1;
+
+    private int numWorkers = Runtime.getRuntime().availableProcessors();
+
+    private int framesInFlight = 4;
+
+    private boolean quiet = false;
+
+    public int setup(String arg, ImagePlus imp) {
+        imRef = imp;
+
+        if (arg.equals("about")) {
+            showAbout();
+            return DONE;
+        }
+
+        getParams();
+
+        return DOES_8G + DOES_16 + DOES_32 + NO_CHANGES;
+    }
+
+    private void getParams() {
+        GenericDialog gd = new GenericDialog("Fractal dimension per frame");
+
+        gd.addChoice("Estimator", ESTIMATORS, ESTIMATORS[estimator]);
+        gd.addNumericField("Threshold (binary)", threshold, imRef != null && imRef.getBitDepth() == 32 ? 3 : 0);
+        gd.addNumericField("Scale z-axis by (SDBC)", zScale, 1);
+        gd.addCheckbox("Include subgraph (SDBC)", subGraph);
+        gd.addCheckbox("Automatic box size", autoParam);
+        gd.addNumericField("Start box size", maxBox, 0);
+        gd.addNumericField("Min box size", minBox, 0);
+        gd.addNumericField("Box division factor", divBox, 1);
+        gd.addNumericField("Number of translations", numOffsets, 0);
+        gd.addNumericField("Workers", numWorkers, 0);
+        gd.addNumericField("Frames in flight", framesInFlight, 0);
+        gd.addCheckbox("Quiet (no log, for batch macros)", quiet);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled()) {
+            noGo = true;
+            return;
+        }
+
+        estimator = gd.getNextChoiceIndex();
+        threshold = gd.getNextNumber();
+        zScale = gd.getNextNumber();
+        subGraph = gd.getNextBoolean();
+        autoParam = gd.getNextBoolean();
+        maxBox = (int) gd.getNextNumber();
+        minBox = (int) gd.getNextNumber();
+        divBox = gd.getNextNumber();
+        numOffsets = (int) gd.getNextNumber();
+        numWorkers = (int) gd.getNextNumber();
+        framesInFlight = (int) gd.getNextNumber();
+        quiet = gd.getNextBoolean();
+
+        if (divBox <= 1) {
+            IJ.log("Box division factor must be larger than 1. Please select another value");
+            noGo = true;
+        }
+        if (numOffsets < 1) {
+            IJ.log("Number of translations must be at least 1. Please select another value");
+            noGo = true;
+        }
+        if (numWorkers < 1 || framesInFlight < 1) {
+            IJ.log("Workers and frames in flight must be at least 1. Please select other values");
+            noGo = true;
+        }
+    }
+
+    public void run(ImageProcessor ip) {
+        if (noGo) {
+            return;
+        }
+
+        final boolean slicesAreFrames = imRef.getNFrames() == 1;
+        final FramePipeline pipeline = new FramePipeline(imRef, slicesAreFrames, numWorkers, framesInFlight);
+        final int width = imRef.getWidth();
+        final int height = imRef.getHeight();
+        final int depth = pipeline.getFrameDepth();
+        final boolean binary = estimator == 0;
+        if (!binary && depth > 1) {
+            IJ.log("\nError: SDBC needs 2D frames. Use MapFractalCount3D for volumes.");
+            return;
+        }
+
+        if (autoParam) {
+            maxBox = Math.max(width, Math.max(height, depth)) / AUTO_DIV;
+            minBox = Math.min(DEFAULT_MIN_BOX, maxBox);
+        }
+        final int[] sizes = FractalCount_.getBoxSizes(maxBox, minBox, divBox);
+        if (sizes.length == 0) {
+            IJ.log("\nError: No boxes!\nMake sure that starting and ending box size and "
+                    + "\nreduction rate allow for at least one box size to exist!");
+            return;
+        }
+        final double[] fitSizes = new double[sizes.length];
+        final double[] logSizes = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            fitSizes[i] = sizes[i];
+            logSizes[i] = -Math.log(sizes[i]);
+        }
+
+        if (!quiet) {
+            IJ.log(imRef.getTitle() + ": Counting " + pipeline.getNumFrames() + " frames of "
+                    + width + " x " + height + (depth > 1 ? " x " + depth : "") + " with " + numWorkers
+                    + " workers, " + sizes.length + " box sizes from " + maxBox + " to " + minBox);
+        }
+
+        final String title = imRef.getTitle();
+        final long startTime = System.currentTimeMillis();
+        boolean finished;
+        try {
+            finished = pipeline.run(new FramePipeline.FrameCounter() {
+                public long[] count(ImageStack frame) {
+                    return binary ? countBinary(frame, sizes) : countSurface(frame.getProcessor(1), sizes);
+                }
+            }, new FramePipeline.ResultWriter() {
+                public void write(int frame, long[] counts) {
+                    double[] fitCounts = new double[counts.length];
+                    double[] logCounts = new double[counts.length];
+                    for (int i = 0; i < counts.length; i++) {
+                        fitCounts[i] = counts[i];
+                        logCounts[i] = Math.log(counts[i]);
+                    }
+                    final String label = title + ": t=" + (frame + 1);
+                    ResultsTable rt = FitResults.add(label, fitSizes, fitCounts);
+                    rt.addValue("Frame", frame + 1);
+                    if (!quiet) {
+                        IJ.log(label + ": Dimension estimate: "
+                                + IJ.d2s(LineFit.slope(logSizes, logCounts, counts.length), 4));
+                    }
+                    FitResults.show(rt);
+                }
+            });
+        } catch (InterruptedException e) {
+            IJ.log("\nError: Frame count was interrupted.");
+            return;
+        } catch (IllegalStateException e) {
+            IJ.log("\nError: " + e.getMessage() + ": " + e.getCause());
+            return;
+        }
+        if (!finished) {
+            IJ.log("Stopped with Esc; the frames written so far are in the Results table.");
+        }
+        if (!quiet) {
+            IJ.log("Time used: " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        }
+    }
+
+    /**
+     * Thresholds a frame and returns the smallest count over the
+     * translations of each box size, as FractalCount_ does.
+     */
+    private long[] countBinary(ImageStack frame, int[] sizes) {
+        final BinaryVolume volume = BinaryVolume.fromStack(frame, threshold);
+        final BoxGrids grids = new BoxGrids(sizes, numOffsets, frame.getWidth(), frame.getHeight(), frame.getSize());
+        long[] gridCounts = new long[grids.getNumGrids()];
+        for (int g = 0; g < gridCounts.length; g++) {
+            gridCounts[g] = volume.countBoxes(grids.getSize(g), grids.getOffsetX(g),
+                    grids.getOffsetY(g), grids.getOffsetZ(g));
+        }
+        return grids.getBestCounts(gridCounts);
+    }
+
+    /**
+     * The SDBC counts of a 2D frame, with the smallest count over the
+     * translations of each box size, as MapFractalCount_ does.
+     */
+    private long[] countSurface(ImageProcessor ip, int[] sizes) {
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        float min = Float.MAX_VALUE;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                min = Math.min(min, ip.getPixelValue(x, y));
+            }
+        }
+
+        long[] counts = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            final int boxSize = sizes[i];
+            final int increment = Math.max(1, boxSize / numOffsets);
+            counts[i] = Long.MAX_VALUE;
+            for (int gridOffsetX = 0; (gridOffsetX < boxSize)
+                    && (gridOffsetX < width); gridOffsetX += increment) {
+                for (int gridOffsetY = 0; (gridOffsetY < boxSize)
+                        && (gridOffsetY < height); gridOffsetY += increment) {
+                    counts[i] = Math.min(counts[i], MapFractalCount_.countBoxes(ip, boxSize,
+                            gridOffsetX, gridOffsetY, zScale, subGraph, min));
+                }
+            }
+        }
+        return counts;
+    }
+
+    void showAbout() {
+        IJ.showMessage(
+                "About TimeLapseFractalCount..",
+                "This plugin estimates the fractal dimension of each frame of a time-lapse stack.");
+    }
+}